@@ -189,7 +189,7 @@ public class Bolt extends JFrame implements LCMSubscriber
                     }
                     if(obj != null){
                         FeatureCategory cat = Features.getFeatureCategory(tl.cat.cat);
-                        ArrayList<Double> features = obj.getFeatures(cat);
+                        double[] features = obj.getFeatureArray(cat);
                         if(features != null){
                             classifierManager.addDataPoint(cat, features, tl.label);
                         }
@@ -0,0 +1,110 @@
+package abolt.classify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * @purpose The foreground of an object's image, one byte per pixel in row
+ *          major order, which is all the shape features look at. Masks are
+ *          made for a single feature extraction and thrown away, so their
+ *          buffers come from a small pool: obtain() a mask and release()
+ *          it once done.
+ */
+public class BinaryMask {
+    // Buffers kept for reuse by obtain()
+    private static final int MAX_POOLED = 8;
+    private static final ArrayList<byte[]> pool = new ArrayList<byte[]>();
+
+    private final int width, height;
+    private byte[] data;
+
+    private BinaryMask(int width, int height, byte[] data) {
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    /**
+     * @return an empty mask, backed by a pooled buffer if one is large
+     *         enough
+     */
+    public static BinaryMask obtain(int width, int height) {
+        int size = width * height;
+        byte[] data = null;
+        synchronized (pool) {
+            for (int i = pool.size() - 1; i >= 0; i--) {
+                if (pool.get(i).length >= size) {
+                    data = pool.remove(i);
+                    break;
+                }
+            }
+        }
+        if (data == null) {
+            data = new byte[size];
+        } else {
+            Arrays.fill(data, 0, size, (byte) 0);
+        }
+        return new BinaryMask(width, height, data);
+    }
+
+    /**
+     * Returns the buffer to the pool, the mask must not be used afterwards
+     */
+    public void release() {
+        if (data == null) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() == MAX_POOLED) {
+                // Keep the larger buffers, they fit more masks
+                int smallest = 0;
+                for (int i = 1; i < pool.size(); i++) {
+                    if (pool.get(i).length < pool.get(smallest).length) {
+                        smallest = i;
+                    }
+                }
+                if (pool.get(smallest).length < data.length) {
+                    pool.set(smallest, data);
+                }
+            } else {
+                pool.add(data);
+            }
+        }
+        data = null;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /**
+     * @return whether (x, y) is foreground, false outside of the mask
+     */
+    public boolean get(int x, int y) {
+        return contains(x, y) && data[y * width + x] != 0;
+    }
+
+    public void set(int x, int y) {
+        data[y * width + x] = 1;
+    }
+
+    public void clear(int x, int y) {
+        data[y * width + x] = 0;
+    }
+
+    /**
+     * @return the backing buffer, pixel (x, y) at y * getWidth() + x; it
+     *         may be longer than the mask
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,257 @@
+package abolt.classify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import abolt.classify.Features.FeatureCategory;
+import april.util.GetOpt;
+
+/**
+ * @purpose Compact binary copy of a .dat training file that loads with a
+ *          single bulk read instead of parsing every line. The file is read
+ *          into the heap rather than mapped, so that TrainingJournal can
+ *          replace it while the program runs (see DataFileParser.readFile).
+ *
+ *          Layout (big endian):
+ *            int magic, int version,
+ *            long source length, long source modification time,
+ *            int dim, int rows, int numLabels
+ *            numLabels x (int length, length bytes of UTF-8 label)
+ *            rows x int label id
+ *            rows*dim x double features, row-major
+ *
+ *          The binary copy of "x.dat" is "x.bin". It records the length and
+ *          modification time x.dat had when it was made, and TrainingSet.load
+ *          only uses it while x.dat still has exactly those. Comparing for
+ *          equality rather than age means an edit in the same second the
+ *          copy was written (file times may be whole seconds) is not missed.
+ */
+public class BinaryTrainingData {
+    public static final int MAGIC = 0x41424c54; // "ABLT"
+    public static final int VERSION = 2;
+
+    // Stamp of a binary file that was not made from a text file
+    private static final long[] NO_SOURCE = { -1, -1 };
+
+    /**
+     * @return the path of the binary copy of datafile
+     */
+    public static String getBinaryPath(String datafile) {
+        if (datafile.endsWith(".bin")) {
+            return datafile;
+        }
+        if (datafile.endsWith(".dat")) {
+            return datafile.substring(0, datafile.length() - 4) + ".bin";
+        }
+        return datafile + ".bin";
+    }
+
+    /**
+     * @return the {length, modification time} of file, which a copy made
+     *         from it records; take it before reading the file
+     */
+    public static long[] getStamp(String file) {
+        File f = new File(file);
+        if (!f.isFile()) {
+            return NO_SOURCE.clone();
+        }
+        return new long[] { f.length(), f.lastModified() };
+    }
+
+    /**
+     * @return true if datafile has a binary copy made from its current
+     *         contents, or only a binary copy
+     */
+    public static boolean isCurrent(String datafile) {
+        String binfile = getBinaryPath(datafile);
+        if (!new File(binfile).isFile()) {
+            return false;
+        }
+        if (binfile.equals(datafile) || !new File(datafile).exists()) {
+            return true;
+        }
+        long[] stamp;
+        try {
+            stamp = readStamp(binfile);
+        } catch (IOException ex) {
+            return false;
+        }
+        long[] current = getStamp(datafile);
+        return (stamp[0] == current[0] && stamp[1] == current[1]);
+    }
+
+    /**
+     * @return the stamp recorded in the header of binfile
+     */
+    private static long[] readStamp(String binfile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binfile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(binfile + " is not a binary training file of version " + VERSION);
+            }
+            return new long[] { in.readLong(), in.readLong() };
+        } finally {
+            in.close();
+        }
+    }
+
+    public static TrainingSet read(String binfile) throws IOException {
+        ByteBuffer buf = DataFileParser.readFile(binfile);
+        try {
+            return read(buf, binfile);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException(binfile + " is truncated");
+        }
+    }
+
+    private static TrainingSet read(ByteBuffer buf, String binfile) throws IOException {
+        if (buf.getInt() != MAGIC) {
+            throw new IOException(binfile + " is not a binary training file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException(binfile + " has unsupported version " + version);
+        }
+        buf.getLong();
+        buf.getLong();
+        int dim = buf.getInt();
+        int rows = buf.getInt();
+        int numLabels = buf.getInt();
+        if (dim < 0 || rows < 0 || numLabels < 0) {
+            throw new IOException(binfile + " has a corrupt header");
+        }
+
+        ArrayList<String> labels = new ArrayList<String>();
+        for (int i = 0; i < numLabels; i++) {
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                throw new IOException(binfile + " has a corrupt label table");
+            }
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            labels.add(new String(bytes, "UTF-8"));
+        }
+        if (buf.remaining() != rows * 4L + rows * (long) dim * 8) {
+            throw new IOException(binfile + " is truncated or has trailing bytes");
+        }
+
+        int[] labelIds = new int[rows];
+        buf.asIntBuffer().get(labelIds);
+        buf.position(buf.position() + rows * 4);
+        for (int i = 0; i < rows; i++) {
+            if (labelIds[i] < 0 || labelIds[i] >= numLabels) {
+                throw new IOException(binfile + " has a bad label id in row " + i);
+            }
+        }
+
+        double[] coords = new double[rows * dim];
+        buf.asDoubleBuffer().get(coords);
+
+        return new TrainingSet(dim, rows, coords, labelIds, labels);
+    }
+
+    /**
+     * Writes set to binfile. The data goes to a temporary file that is
+     * synced and then renamed over binfile, so binfile always holds either
+     * the old or the new data, even when it is the only copy.
+     * @param stamp the getStamp() of the text file set was read from, taken
+     *              before reading it, or null if there is none
+     */
+    public static void write(TrainingSet set, String binfile, long[] stamp) throws IOException {
+        if (stamp == null) {
+            stamp = NO_SOURCE;
+        }
+        File target = new File(binfile);
+        File tmp = new File(binfile + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+        boolean done = false;
+        try {
+            int dim = set.getDim();
+            int rows = set.size();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(stamp[0]);
+            out.writeLong(stamp[1]);
+            out.writeInt(dim);
+            out.writeInt(rows);
+            out.writeInt(set.numLabels());
+
+            for (int i = 0; i < set.numLabels(); i++) {
+                byte[] bytes = set.getLabelName(i).getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            int[] labelIds = set.getLabelIds();
+            for (int i = 0; i < rows; i++) {
+                out.writeInt(labelIds[i]);
+            }
+
+            // Packed into one buffer rather than a writeDouble per value
+            double[] coords = set.getCoords();
+            ByteBuffer bytes = ByteBuffer.allocate(rows * dim * 8);
+            bytes.asDoubleBuffer().put(coords, 0, rows * dim);
+            out.write(bytes.array());
+            out.flush();
+            fout.getFD().sync();
+            done = true;
+        } finally {
+            out.close();
+            if (!done) {
+                tmp.delete();
+            }
+        }
+
+        // Atomic on POSIX; elsewhere renameTo fails if the target exists
+        if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+            tmp.delete();
+            throw new IOException("Could not replace " + binfile);
+        }
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('i', "infile", null, "Training data (.dat) file");
+        opts.addString('o', "outfile", null, "Binary output file, defaults to the infile with .bin");
+        opts.addString('t', "type", "color", "Type of features in the file: {color, shape, size}");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help") || opts.getString("infile") == null) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        String infile = opts.getString("infile");
+        String outfile = opts.getString("outfile");
+        if (outfile == null) {
+            outfile = getBinaryPath(infile);
+        }
+        FeatureCategory cat = FeatureCategory.valueOf(opts.getString("type").toUpperCase());
+
+        try {
+            long[] stamp = getStamp(infile);
+            TrainingSet set = TrainingSet.loadText(infile, ClassifierManager.getDimensions(cat));
+            write(set, outfile, stamp);
+            System.out.printf("Wrote %d examples with %d labels to %s\n", set.size(), set.numLabels(), outfile);
+        } catch (IOException ex) {
+            System.err.println("ERR: " + ex);
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
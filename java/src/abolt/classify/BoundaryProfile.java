@@ -0,0 +1,249 @@
+package abolt.classify;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * @purpose Measures the distances PCA.getFeature does, from a side of an
+ *          object's oriented bounding box in to the object, against a mask
+ *          of the object's pixels made once per image instead of probing
+ *          the image through getRGB and a new Color at every step.
+ *
+ *          getDistance takes exactly the steps getFeature does, with the
+ *          same probes, so the profiles are identical. A ray that has not
+ *          reached the image yet and is heading away from it is stopped at
+ *          once rather than after the full 100000 steps.
+ *
+ *          main() checks this against PCA on random images.
+ */
+public class BoundaryProfile {
+    // Step along the ray, as in PCA.getFeature
+    private static final double INCREMENT = .5;
+    private static final int MAX_STEPS = 100000;
+
+    private final int width, height;
+    // The valid pixels (see PCA.isValidPixel)
+    private final BinaryMask mask;
+
+    /**
+     * @param mask the object's pixels, it must not be released while the
+     *             profile is in use
+     */
+    public BoundaryProfile(BinaryMask mask) {
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+        this.mask = mask;
+    }
+
+    private boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    private boolean isValid(int x, int y) {
+        return mask.get(x, y);
+    }
+
+    /**
+     * @return the distance from start along dir to the first valid pixel,
+     *         or 0 if the ray leaves the image first or never reaches it;
+     *         the same as PCA.getFeature
+     */
+    public double getDistance(double[] start, double[] dir) {
+        double x = start[0];
+        double y = start[1];
+        double dist = 0;
+
+        boolean inBounds = false;
+        int steps = 0;
+        while (steps++ < MAX_STEPS) {
+            int xi = (int) x;
+            int yi = (int) y;
+            if (contains(xi, yi)) {
+                inBounds = true;
+            } else if (inBounds) {
+                return 0;
+            }
+            // getFeature probes both the pixel and its lower right neighbour
+            if (isValid(xi, yi) || isValid(xi + 1, yi + 1)) {
+                return dist;
+            }
+            if (!inBounds && isHeadingAway(x, y, dir)) {
+                return 0;
+            }
+
+            x += dir[0] * INCREMENT;
+            y += dir[1] * INCREMENT;
+            dist += INCREMENT;
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if neither probe can be in the image at (x, y) or any
+     *         later step
+     */
+    private boolean isHeadingAway(double x, double y, double[] dir) {
+        // Below -2 both (int)x and (int)x + 1 are negative
+        return (x < -2 && dir[0] <= 0) || (x >= width && dir[0] >= 0)
+            || (y < -2 && dir[1] <= 0) || (y >= height && dir[1] >= 0);
+    }
+
+    /**
+     * @return an image of a random rotated ellipse, rectangle or triangle,
+     *         with a few random pixels around it
+     */
+    private static BufferedImage randomBlob(Random rand) {
+        int w = 20 + rand.nextInt(150);
+        int h = 20 + rand.nextInt(150);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(50 + rand.nextInt(200), rand.nextInt(256), rand.nextInt(256)));
+        g.setTransform(AffineTransform.getRotateInstance(rand.nextDouble() * Math.PI, w / 2.0, h / 2.0));
+        double bw = w * (.2 + .5 * rand.nextDouble());
+        double bh = h * (.2 + .5 * rand.nextDouble());
+        switch (rand.nextInt(3)) {
+            case 0:
+                g.fill(new Ellipse2D.Double((w - bw) / 2, (h - bh) / 2, bw, bh));
+                break;
+            case 1:
+                g.fill(new Rectangle2D.Double((w - bw) / 2, (h - bh) / 2, bw, bh));
+                break;
+            default:
+                g.fillPolygon(new int[] { (int) ((w - bw) / 2), (int) ((w + bw) / 2), w / 2 },
+                              new int[] { (int) ((h + bh) / 2), (int) ((h + bh) / 2), (int) ((h - bh) / 2) }, 3);
+        }
+        g.dispose();
+        int noise = rand.nextInt(20);
+        for (int i = 0; i < noise; i++) {
+            img.setRGB(rand.nextInt(w), rand.nextInt(h), rand.nextInt(1 << 24));
+        }
+        return img;
+    }
+
+    /**
+     * @return PCA.getFeatureArray as it was before the pixel statistics and
+     *         the mask: moments from getPixels, getMean and getCov, and
+     *         getFeature's rays through the image
+     */
+    private static double[] getFeatureArrayFromPixels(BufferedImage img, int numFeatures) {
+        ArrayList<int[]> pixels = PCA.getPixels(img);
+        if (pixels.size() == 0) {
+            return null;
+        }
+        double[] mean = PCA.getMean(pixels);
+        double[] v1 = PCA.getPrincipleEigenvector(PCA.getCov(pixels, mean));
+        double[] v2 = new double[] { -v1[1], v1[0] };
+        double[] proj1 = PCA.projectOntoVector(pixels, mean, v1);
+        double[] proj2 = PCA.projectOntoVector(pixels, mean, v2);
+
+        ArrayList<Double> features = new ArrayList<Double>();
+        features.add((proj1[1] - proj1[0]) / (proj2[1] - proj2[0]));
+        for (int i = 0; i < 2; i++) {
+            double[] start = new double[] { mean[0] + proj1[0] * v1[0] + proj2[i] * v2[0],
+                                            mean[1] + proj1[0] * v1[1] + proj2[i] * v2[1] };
+            double[] dir = new double[] { (i == 0 ? 1 : -1) * v2[0], (i == 0 ? 1 : -1) * v2[1] };
+            for (float perc = .02f; perc <= .98; perc += .95f / (numFeatures - 1)) {
+                double[] pt = new double[] { start[0] + perc * (proj1[1] - proj1[0]) * v1[0],
+                                             start[1] + perc * (proj1[1] - proj1[0]) * v1[1] };
+                features.add(PCA.getFeature(img, pt, dir) / (proj2[1] - proj2[0]));
+            }
+        }
+        return FEUtil.toArray(features);
+    }
+
+    /**
+     * On random images, checks that getDistance gives exactly what
+     * PCA.getFeature does along random rays, some of which start outside
+     * the image; that the pixel statistics have the same count, mean and
+     * extents as getPixels, getMean and projectOntoVector, and how far
+     * their covariance is from getCov; and how far the shape features are
+     * from the ones computed through the image.
+     */
+    public static void main(String[] args) {
+        int numImages = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        int raysPerImage = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+        Random rand = new Random(0);
+
+        int rays = 0, raysDiffering = 0, momentsDiffering = 0, featuresDiffering = 0;
+        double maxCovError = 0, maxFeatureError = 0;
+        for (int n = 0; n < numImages; n++) {
+            BufferedImage img = randomBlob(rand);
+            BinaryMask mask = BinaryMask.obtain(img.getWidth(), img.getHeight());
+            try {
+                PCA.PixelStatistics stats = PCA.getPixelStatistics(img, mask);
+                BoundaryProfile profile = new BoundaryProfile(mask);
+                for (int r = 0; r < raysPerImage; r++) {
+                    double angle = rand.nextDouble() * 2 * Math.PI;
+                    // Some rays run along an axis
+                    double[] dir = new double[] { (r % 10 == 0 ? 0 : Math.cos(angle)),
+                                                  (r % 10 == 1 ? 0 : Math.sin(angle)) };
+                    double[] start = new double[] { rand.nextDouble() * (img.getWidth() + 40) - 20,
+                                                    rand.nextDouble() * (img.getHeight() + 40) - 20 };
+                    rays++;
+                    if (Double.doubleToLongBits(profile.getDistance(start, dir))
+                        != Double.doubleToLongBits(PCA.getFeature(img, start, dir))) {
+                        raysDiffering++;
+                    }
+                }
+
+                ArrayList<int[]> pixels = PCA.getPixels(img);
+                if (pixels.size() != stats.size()) {
+                    momentsDiffering++;
+                } else if (pixels.size() > 0) {
+                    double[] mean = PCA.getMean(pixels);
+                    double[] statsMean = stats.getMean();
+                    double[] axis = PCA.getPrincipleEigenvector(stats.getCov());
+                    double[] proj = PCA.projectOntoVector(pixels, mean, axis);
+                    double[] statsProj = stats.projectOntoVector(mean, axis);
+                    if (mean[0] != statsMean[0] || mean[1] != statsMean[1]
+                        || proj[0] != statsProj[0] || proj[1] != statsProj[1]) {
+                        momentsDiffering++;
+                    }
+                    double[][] cov = PCA.getCov(pixels, mean);
+                    double[][] statsCov = stats.getCov();
+                    double scale = Math.abs(cov[0][0]) + Math.abs(cov[1][1]);
+                    for (int i = 0; i < 2; i++) {
+                        for (int j = 0; j < 2; j++) {
+                            maxCovError = Math.max(maxCovError, Math.abs(cov[i][j] - statsCov[i][j]) / scale);
+                        }
+                    }
+                }
+            } finally {
+                mask.release();
+            }
+
+            double[] expected = getFeatureArrayFromPixels(img, 7);
+            double[] actual = PCA.getFeatureArray(img, 7);
+            if (expected == null || actual == null || expected.length != actual.length) {
+                if (expected != actual) {
+                    featuresDiffering++;
+                }
+                continue;
+            }
+            boolean same = true;
+            for (int i = 0; i < expected.length; i++) {
+                if (Double.doubleToLongBits(expected[i]) != Double.doubleToLongBits(actual[i])) {
+                    same = false;
+                    maxFeatureError = Math.max(maxFeatureError, Math.abs(expected[i] - actual[i]));
+                }
+            }
+            featuresDiffering += (same ? 0 : 1);
+        }
+
+        System.out.printf("%d rays, %d differ from PCA.getFeature\n", rays, raysDiffering);
+        System.out.printf("%d images, %d with another pixel count, mean or extent than getPixels\n",
+                          numImages, momentsDiffering);
+        System.out.printf("covariance relative to getCov off by at most %.3g\n", maxCovError);
+        System.out.printf("%d feature vectors differ from the getPixels and getFeature ones, by at most %.3g\n",
+                          featuresDiffering, maxFeatureError);
+        if (raysDiffering > 0 || momentsDiffering > 0) {
+            System.err.println("ERR: The mask does not match the image");
+        }
+    }
+}
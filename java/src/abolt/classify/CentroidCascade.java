@@ -0,0 +1,404 @@
+package abolt.classify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import abolt.classify.Features.FeatureCategory;
+import april.util.GetOpt;
+
+/**
+ * @purpose A two stage classifier in front of a KNN (or ShapeKNN). Every
+ *          label is summarised by the centroid of its examples and their
+ *          RMS distance to it (the radius), both kept up to date as examples
+ *          are added. A query is first scored against every label as its
+ *          distance to the centroid in radii. When the best label is within
+ *          insideRadii, the runner up is at least margin radii farther away
+ *          and an example of the best label is within the KNN's maxDistance
+ *          (so the KNN would not call the query unknown), the best label is
+ *          the answer, with the confidence of a unanimous KNN vote.
+ *          Otherwise the KNN decides, looking only at the examples of the
+ *          labels within margin of the best one.
+ *
+ *          The KNN stays the owner of the examples; the cascade only adds
+ *          the per-label summaries, so it is cheap to copy. main() compares
+ *          it to the plain KNN on held out examples.
+ */
+public class CentroidCascade implements IClassifier, Cloneable {
+    public static final double DEFAULT_MARGIN = 1.5;
+    public static final double DEFAULT_INSIDE_RADII = 2.0;
+
+    private KNN knn;
+    // Length of the stored (scaled) examples the summaries are over
+    private int dim;
+    private double margin;
+    private double insideRadii;
+
+    // Per label id of knn's data: number of rows, running mean [label][dim]
+    // and the sum of squared distances to it (Welford)
+    private int counted = 0;
+    private int[] counts = new int[0];
+    private double[] means = new double[0];
+    private double[] m2s = new double[0];
+    // Radius used for labels with fewer than two distinct rows
+    private double typicalRadius = 1;
+
+    // Shared by all copies, so they survive snapshot swaps
+    private AtomicLong numQueries = new AtomicLong();
+    private AtomicLong numResolved = new AtomicLong();
+
+    public CentroidCascade(KNN knn) {
+        this(knn, DEFAULT_MARGIN, DEFAULT_INSIDE_RADII);
+    }
+
+    /**
+     * @param margin how many radii farther the runner up label must be for
+     *               the centroids alone to decide
+     * @param insideRadii how many radii from its centroid a query may be for
+     *                    the centroids alone to decide
+     */
+    public CentroidCascade(KNN knn, double margin, double insideRadii) {
+        this.knn = knn;
+        this.dim = knn.getData().getDim();
+        this.margin = margin;
+        this.insideRadii = insideRadii;
+        updateSummaries();
+    }
+
+    public KNN getKNN() {
+        return knn;
+    }
+
+    /**
+     * @return the fraction of the queries so far that the centroids decided
+     *         without a neighbour search
+     */
+    public double getResolvedFraction() {
+        long queries = numQueries.get();
+        return (queries == 0 ? 0 : ((double) numResolved.get()) / queries);
+    }
+
+    public long getNumQueries() {
+        return numQueries.get();
+    }
+
+    public void resetStatistics() {
+        numQueries.set(0);
+        numResolved.set(0);
+    }
+
+    @Override
+    public CentroidCascade copy() {
+        CentroidCascade copy;
+        try {
+            copy = (CentroidCascade) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex);
+        }
+        copy.knn = knn.copy();
+        copy.counts = counts.clone();
+        copy.means = means.clone();
+        copy.m2s = m2s.clone();
+        return copy;
+    }
+
+    @Override
+    public void add(ArrayList<Double> features, String label) {
+        knn.add(features, label);
+        updateSummaries();
+    }
+
+    @Override
+    public void add(double[] features, String label) {
+        knn.add(features, label);
+        updateSummaries();
+    }
+
+    @Override
+    public void clearData() {
+        knn.clearData();
+        resetSummaries();
+    }
+
+    @Override
+    public boolean loadData() {
+        boolean loaded = knn.loadData();
+        // The KNN may have started over with a newly fitted scaler
+        resetSummaries();
+        updateSummaries();
+        return loaded;
+    }
+
+    private void resetSummaries() {
+        dim = knn.getData().getDim();
+        counted = 0;
+        counts = new int[0];
+        means = new double[0];
+        m2s = new double[0];
+        typicalRadius = 1;
+    }
+
+    /**
+     * Folds the rows knn gained since the last call into the summaries
+     */
+    private void updateSummaries() {
+        ITrainingData data = knn.getData();
+        int n = data.size();
+        if (n == counted) {
+            return;
+        }
+        int numLabels = data.numLabels();
+        if (counts.length < numLabels) {
+            int[] c = new int[numLabels];
+            double[] m = new double[numLabels * dim];
+            double[] s = new double[numLabels];
+            System.arraycopy(counts, 0, c, 0, counts.length);
+            System.arraycopy(means, 0, m, 0, means.length);
+            System.arraycopy(m2s, 0, s, 0, m2s.length);
+            counts = c;
+            means = m;
+            m2s = s;
+        }
+
+        for (int row = counted; row < n; row++) {
+            int id = data.getLabelId(row);
+            int off = id * dim;
+            int count = ++counts[id];
+            for (int d = 0; d < dim; d++) {
+                double x = data.get(row, d);
+                double delta = x - means[off + d];
+                means[off + d] += delta / count;
+                m2s[id] += delta * (x - means[off + d]);
+            }
+        }
+        counted = n;
+
+        double total = 0;
+        int spread = 0;
+        for (int id = 0; id < counts.length; id++) {
+            double radius = radius(id);
+            if (radius > 0) {
+                total += radius;
+                spread++;
+            }
+        }
+        typicalRadius = (spread == 0 ? 1 : total / spread);
+    }
+
+    private double radius(int id) {
+        return (counts[id] == 0 ? 0 : Math.sqrt(Math.max(0, m2s[id]) / counts[id]));
+    }
+
+    @Override
+    public ConfidenceLabel classify(ArrayList<Double> features) {
+        return classify(FEUtil.toArray(features));
+    }
+
+    @Override
+    public ConfidenceLabel classify(double[] features) {
+        if (features.length != knn.dim) {
+            return new ConfidenceLabel(0.0, "unknown");
+        }
+        boolean[][] candidates = new boolean[1][];
+        ConfidenceLabel label = resolve(features, candidates, 0);
+        return (label != null ? label : knn.classify(features, candidates[0]));
+    }
+
+    /**
+     * Scores a query against the centroids
+     * @return the label if the centroids decide it, otherwise null, with the
+     *         labels the KNN should look at in candidates[q]
+     */
+    private ConfidenceLabel resolve(double[] features, boolean[][] candidates, int q) {
+        numQueries.incrementAndGet();
+        double[] query = knn.scale(features);
+
+        // Distance to each centroid in radii of its label
+        double[] scores = new double[counts.length];
+        int best = -1, second = -1;
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] == 0) {
+                continue;
+            }
+            int off = id * dim;
+            double distSq = 0;
+            for (int d = 0; d < dim; d++) {
+                double diff = query[d] - means[off + d];
+                distSq += diff * diff;
+            }
+            double radius = radius(id);
+            scores[id] = Math.sqrt(distSq) / (radius > 0 ? radius : typicalRadius);
+            if (best < 0 || scores[id] < scores[best]) {
+                second = best;
+                best = id;
+            } else if (second < 0 || scores[id] < scores[second]) {
+                second = id;
+            }
+        }
+        if (best < 0) {
+            return new ConfidenceLabel(0.0, "unknown");
+        }
+
+        double runnerUp = (second < 0 ? Double.POSITIVE_INFINITY : scores[second]);
+        if (scores[best] <= insideRadii && runnerUp - scores[best] >= margin && knn.hasNeighbor(query, best)) {
+            numResolved.incrementAndGet();
+            // All the neighbours are of the best label, as far as the
+            // centroids can tell
+            return new ConfidenceLabel(1.0, knn.getData().getLabelName(best));
+        }
+
+        candidates[q] = new boolean[counts.length];
+        for (int id = 0; id < counts.length; id++) {
+            candidates[q][id] = (counts[id] > 0 && scores[id] - scores[best] < margin);
+        }
+        return null;
+    }
+
+    @Override
+    public List<ConfidenceLabel> classifyBatch(List<ArrayList<Double>> features) {
+        double[][] queries = new double[features.size()][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = FEUtil.toArray(features.get(i));
+        }
+        return Arrays.asList(classifyBatch(queries));
+    }
+
+    /**
+     * The queries the centroids do not decide go to the KNN together, in
+     * one batch
+     */
+    @Override
+    public ConfidenceLabel[] classifyBatch(double[][] features) {
+        ConfidenceLabel[] labels = new ConfidenceLabel[features.length];
+        boolean[][] candidates = new boolean[features.length][];
+        int[] unresolved = new int[features.length];
+        int numUnresolved = 0;
+        for (int i = 0; i < features.length; i++) {
+            if (features[i].length != knn.dim) {
+                labels[i] = new ConfidenceLabel(0.0, "unknown");
+                continue;
+            }
+            labels[i] = resolve(features[i], candidates, i);
+            if (labels[i] == null) {
+                unresolved[numUnresolved++] = i;
+            }
+        }
+        if (numUnresolved == 0) {
+            return labels;
+        }
+
+        double[][] queries = new double[numUnresolved][];
+        boolean[][] filters = new boolean[numUnresolved][];
+        for (int j = 0; j < numUnresolved; j++) {
+            queries[j] = features[unresolved[j]];
+            filters[j] = candidates[unresolved[j]];
+        }
+        ConfidenceLabel[] decided = knn.classifyBatch(queries, filters);
+        for (int j = 0; j < numUnresolved; j++) {
+            labels[unresolved[j]] = decided[j];
+        }
+        return labels;
+    }
+
+    /**
+     * Holds out every 10th example of the file, trains a KNN and a cascade
+     * in front of an identical KNN on the rest, and reports their accuracy,
+     * how often they agree, the time per query and the fraction of queries
+     * the centroids decided
+     */
+    private static void compare(FeatureCategory cat, String datafile, double margin, double insideRadii) {
+        TrainingSet examples;
+        try {
+            examples = TrainingSet.load(datafile, ClassifierManager.getDimensions(cat));
+        } catch (Exception ex) {
+            System.err.println("ERR: Could not load " + datafile);
+            ex.printStackTrace();
+            return;
+        }
+        KNN knn = ClassifierManager.createKNN(cat, datafile);
+        CentroidCascade cascade = new CentroidCascade(ClassifierManager.createKNN(cat, datafile),
+                                                      margin, insideRadii);
+        int numQueries = 0;
+        for (int i = 0; i < examples.size(); i++) {
+            if (i % 10 != 0) {
+                knn.add(examples.getRow(i), examples.getLabel(i));
+                cascade.add(examples.getRow(i), examples.getLabel(i));
+            } else {
+                numQueries++;
+            }
+        }
+        double[][] queries = new double[numQueries][];
+        String[] truth = new String[numQueries];
+        for (int q = 0; q < numQueries; q++) {
+            queries[q] = examples.getRow(q * 10);
+            truth[q] = examples.getLabel(q * 10);
+        }
+
+        int knnCorrect = 0, cascadeCorrect = 0, agree = 0;
+        for (int q = 0; q < numQueries; q++) {
+            String a = knn.classify(queries[q]).getLabel();
+            String b = cascade.classify(queries[q]).getLabel();
+            knnCorrect += (a.equals(truth[q]) ? 1 : 0);
+            cascadeCorrect += (b.equals(truth[q]) ? 1 : 0);
+            agree += (a.equals(b) ? 1 : 0);
+        }
+        double resolved = cascade.getResolvedFraction();
+
+        // The batched pass must give the same labels as one query at a time
+        ConfidenceLabel[] batch = cascade.classifyBatch(queries);
+        int batchAgree = 0;
+        for (int q = 0; q < numQueries; q++) {
+            batchAgree += (batch[q].getLabel().equals(cascade.classify(queries[q]).getLabel()) ? 1 : 0);
+        }
+
+        // Time both after a warm up pass
+        long knnStart = 0, cascadeStart = 0, knnTime = 0, cascadeTime = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            knnStart = System.nanoTime();
+            for (double[] query : queries) {
+                knn.classify(query);
+            }
+            knnTime = System.nanoTime() - knnStart;
+            cascadeStart = System.nanoTime();
+            for (double[] query : queries) {
+                cascade.classify(query);
+            }
+            cascadeTime = System.nanoTime() - cascadeStart;
+        }
+
+        double n = Math.max(1, numQueries);
+        System.out.printf("%s: %d examples, %d held out queries\n", cat, knn.getData().size(), numQueries);
+        System.out.printf("  knn:     accuracy %.4f, %.1f us/query\n", knnCorrect / n, knnTime / 1e3 / n);
+        System.out.printf("  cascade: accuracy %.4f, %.1f us/query, agrees %.4f, resolved by centroids %.4f\n",
+                          cascadeCorrect / n, cascadeTime / 1e3 / n, agree / n, resolved);
+        System.out.printf("  batch:   agrees with single queries %.4f\n", batchAgree / n);
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('c', "color", null, "Color training data (.dat) file");
+        opts.addString('s', "shape", null, "Shape training data (.dat) file");
+        opts.addString('z', "size", null, "Size training data (.dat) file");
+        opts.addDouble('m', "margin", DEFAULT_MARGIN, "Radii between the two best labels to skip the search");
+        opts.addDouble('r', "inside", DEFAULT_INSIDE_RADII, "Radii from the best centroid to skip the search");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help")) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        for (FeatureCategory cat : FeatureCategory.values()) {
+            String datafile = opts.getString(cat.toString().toLowerCase());
+            if (datafile != null) {
+                compare(cat, datafile, opts.getDouble("margin"), opts.getDouble("inside"));
+            }
+        }
+    }
+}
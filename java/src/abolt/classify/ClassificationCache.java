@@ -0,0 +1,140 @@
+package abolt.classify;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import abolt.classify.Features.FeatureCategory;
+
+/**
+ * @purpose Remembers the label each tracked object got, so an object that
+ *          did not change between frames is not classified again. An entry
+ *          is kept per (category, object id) together with the object's
+ *          features quantised to a grid of the given size (the fingerprint)
+ *          and the classifier snapshot that produced the label; a lookup
+ *          only hits if both still match. The least recently used entries
+ *          are evicted beyond the capacity.
+ *
+ *          Snapshots are held weakly, so the cache never keeps an old
+ *          training set alive.
+ */
+public class ClassificationCache {
+    private static class Entry {
+        long[] cells;
+        WeakReference<IClassifier> snapshot;
+        ConfidenceLabel label;
+    }
+
+    private final int capacity;
+    private final double[] quanta;
+    private final LinkedHashMap<Long, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity the number of entries to keep
+     * @param quanta the grid size of each category's features, by ordinal;
+     *               features closer than this are treated as unchanged
+     */
+    public ClassificationCache(final int capacity, double[] quanta) {
+        this.capacity = capacity;
+        this.quanta = quanta.clone();
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static Long key(FeatureCategory cat, int id) {
+        return (((long) cat.ordinal()) << 32) | (id & 0xffffffffL);
+    }
+
+    /**
+     * @return the grid cell of every feature
+     */
+    private long[] fingerprint(FeatureCategory cat, double[] features) {
+        double quantum = quanta[cat.ordinal()];
+        long[] cells = new long[features.length];
+        for (int i = 0; i < features.length; i++) {
+            cells[i] = (quantum > 0 ? Math.round(features[i] / quantum) : Double.doubleToLongBits(features[i]));
+        }
+        return cells;
+    }
+
+    /**
+     * @return the label the object got from snapshot with features in the
+     *         same cells, or null
+     */
+    public ConfidenceLabel get(FeatureCategory cat, int id, double[] features, IClassifier snapshot) {
+        long[] cells = fingerprint(cat, features);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(cat, id));
+        }
+        if (entry != null && entry.snapshot.get() == snapshot && Arrays.equals(entry.cells, cells)) {
+            hits.incrementAndGet();
+            return entry.label;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(FeatureCategory cat, int id, double[] features, IClassifier snapshot, ConfidenceLabel label) {
+        if (capacity <= 0) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.cells = fingerprint(cat, features);
+        entry.snapshot = new WeakReference<IClassifier>(snapshot);
+        entry.label = label;
+        synchronized (this) {
+            entries.put(key(cat, id), entry);
+        }
+    }
+
+    /**
+     * Drops every entry of the category, e.g. once it has a new snapshot
+     */
+    public synchronized void invalidate(FeatureCategory cat) {
+        Iterator<Long> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if ((it.next() >>> 32) == cat.ordinal()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of lookups that hit
+     */
+    public double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return (total == 0 ? 0 : ((double) h) / total);
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -1,7 +1,11 @@
 package abolt.classify;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import april.config.Config;
 
@@ -11,10 +15,50 @@ import abolt.objects.BoltObject;
 /**
  * @author aaron
  * Creates the classifiers used in the system and acts as a point of contact to them
+ * 
+ * The classifier of each category is an immutable snapshot. Readers use the
+ * current one without locking; training, clearing and reloading are queued
+ * and applied to copies on a background thread, which then swaps them in.
  */
 public class ClassifierManager {
 	
-	private HashMap<FeatureCategory, IClassifier> classifiers;
+	private final HashMap<FeatureCategory, AtomicReference<IClassifier>> classifiers;
+	// Write-ahead logs of the examples learned online, empty if disabled
+	private final HashMap<FeatureCategory, TrainingJournal> journals;
+	// Labels of tracked objects whose features have not changed
+	private final ClassificationCache cache;
+	
+	// Changes waiting for the updater thread, applied in order
+	private final LinkedBlockingQueue<Update> updates = new LinkedBlockingQueue<Update>();
+	// Number of updates queued and applied, guarded by this
+	private long numQueued = 0;
+	private long numApplied = 0;
+	
+	/**
+	 * A change to the classifiers. Updates are applied in batches: working
+	 * holds the copies changed so far in the batch, which are published
+	 * together once the batch is done.
+	 */
+	private abstract class Update {
+		// The categories this update changed, their copies are dropped if
+		// the update fails halfway
+		final ArrayList<FeatureCategory> touched = new ArrayList<FeatureCategory>();
+		
+		abstract void apply(HashMap<FeatureCategory, IClassifier> working);
+		
+		/**
+		 * @return the copy of the classifier for cat that this batch changes
+		 */
+		IClassifier getWorking(HashMap<FeatureCategory, IClassifier> working, FeatureCategory cat){
+			IClassifier classifier = working.get(cat);
+			if(classifier == null){
+				classifier = classifiers.get(cat).get().copy();
+				working.put(cat, classifier);
+			}
+			touched.add(cat);
+			return classifier;
+		}
+	}
 	
 	public ClassifierManager(Config config){
         String colorDataFile = "", shapeDataFile = "", sizeDataFile = "";
@@ -28,60 +72,354 @@ public class ClassifierManager {
             ex.printStackTrace();
         }
         
-		classifiers = new HashMap<FeatureCategory, IClassifier>();
-        classifiers.put(FeatureCategory.COLOR, new KNN(1, 6, colorDataFile, 0.2));
-        classifiers.put(FeatureCategory.SHAPE, new ShapeKNN(10, 15, shapeDataFile, 1));
-        classifiers.put(FeatureCategory.SIZE, new KNN(5, 2, sizeDataFile, 1));
+        HashMap<FeatureCategory, IClassifier> initial = new HashMap<FeatureCategory, IClassifier>();
+        initial.put(FeatureCategory.COLOR, createClassifier(config, FeatureCategory.COLOR, colorDataFile));
+        initial.put(FeatureCategory.SHAPE, createClassifier(config, FeatureCategory.SHAPE, shapeDataFile));
+        initial.put(FeatureCategory.SIZE, createClassifier(config, FeatureCategory.SIZE, sizeDataFile));
+
+		classifiers = new HashMap<FeatureCategory, AtomicReference<IClassifier>>();
+        for(FeatureCategory cat : FeatureCategory.values()){
+        	classifiers.put(cat, new AtomicReference<IClassifier>(initial.get(cat)));
+        }
+        
+        // Examples from addDataPoint are journaled next to each data file,
+        // e.g. color_features.dat.journal, and replayed by reloadData
+        journals = new HashMap<FeatureCategory, TrainingJournal>();
+        if(config.getBoolean("training.journal", true)){
+        	int compactSize = config.getInt("training.journal_compact_size", 1000);
+        	String[] dataFiles = {colorDataFile, shapeDataFile, sizeDataFile};
+        	FeatureCategory[] cats = {FeatureCategory.COLOR, FeatureCategory.SHAPE, FeatureCategory.SIZE};
+        	for(int i = 0; i < cats.length; i++){
+        		if(dataFiles[i].length() > 0){
+        			journals.put(cats[i], new TrainingJournal(dataFiles[i], getDimensions(cats[i]), compactSize));
+        		}
+        	}
+        }
+        
+        // Labels of up to cache_size objects are reused while their features
+        // stay in the same cache_quantum sized cells, 0 disables the cache
+        double[] quanta = new double[FeatureCategory.values().length];
+        for(FeatureCategory cat : FeatureCategory.values()){
+        	quanta[cat.ordinal()] = config.getDouble("classify." + cat.toString().toLowerCase() + ".cache_quantum",
+        			config.getDouble("classify.cache_quantum", 0.001));
+        }
+        cache = new ClassificationCache(config.getInt("classify.cache_size", 1024), quanta);
+        
+        Thread updater = new Thread("ClassifierManager updater"){
+        	public void run(){
+        		applyUpdates();
+        	}
+        };
+        updater.setDaemon(true);
+        updater.start();
         
         reloadData();
+        waitForUpdates();
+	}
+
+	/**
+	 * @return an empty KNN set up for the given category with the default
+	 *         parameters, reading its training examples from datafile
+	 */
+	public static KNN createKNN(FeatureCategory cat, String datafile){
+		return createKNN(null, cat, datafile);
+	}
+
+	/**
+	 * @return an empty KNN set up for the given category, reading its
+	 *         training examples from datafile. K and maxDistance can be
+	 *         overridden with classify.<category>.k and .max_distance
+	 *         (see KNNSweep), and the features normalised with .scaling
+	 *         ("zscore" or "minmax"), .whiten and .components (see
+	 *         FeatureScaler). config may be null.
+	 */
+	public static KNN createKNN(Config config, FeatureCategory cat, String datafile){
+		int k = 1;
+		double maxDistance = 1;
+		FeatureScaler scaler = null;
+		switch(cat){
+		case COLOR:
+			k = 1;
+			maxDistance = 0.2;
+			break;
+		case SHAPE:
+			k = 10;
+			maxDistance = 1;
+			break;
+		case SIZE:
+			k = 5;
+			maxDistance = 1;
+			break;
+		}
+		if(config != null){
+			String prefix = "classify." + cat.toString().toLowerCase() + ".";
+			k = config.getInt(prefix + "k", k);
+			maxDistance = config.getDouble(prefix + "max_distance", maxDistance);
+			scaler = FeatureScaler.create(config.getString(prefix + "scaling", "none"),
+					config.getBoolean(prefix + "whiten", false), config.getInt(prefix + "components", 0));
+		}
+
+		KNN knn;
+		if(cat == FeatureCategory.SHAPE){
+			knn = new ShapeKNN(k, getDimensions(cat), datafile, maxDistance);
+		} else {
+			knn = new KNN(k, getDimensions(cat), datafile, maxDistance);
+		}
+		knn.setScaler(scaler);
+		return knn;
+	}
+
+	/**
+	 * @return the classifier named by classify.<category>.type: "knn"
+	 *         (the default), "cascade" (a CentroidCascade in front of the
+	 *         KNN) or "bayes" (a GaussianClassifier)
+	 */
+	private static IClassifier createClassifier(Config config, FeatureCategory cat, String datafile){
+		String prefix = "classify." + cat.toString().toLowerCase() + ".";
+		String type = config.getString(prefix + "type", "knn");
+		if(type.equals("bayes")){
+			// Note that for shapes it does not match the flips of an example
+			return new GaussianClassifier(getDimensions(cat), datafile, config.getDouble(prefix + "max_sigma", 0));
+		}
+
+		// Spatial index used by each KNN, e.g. classify.shape.index = "vptree"
+		KNN knn = createKNN(config, cat, datafile);
+		knn.setIndex(createIndex(config, cat));
+		knn.setParallelBatch(config.getBoolean("classify.parallel_batch", true));
+		if(type.equals("cascade")){
+			return new CentroidCascade(knn,
+					config.getDouble(prefix + "cascade_margin", CentroidCascade.DEFAULT_MARGIN),
+					config.getDouble(prefix + "cascade_inside", CentroidCascade.DEFAULT_INSIDE_RADII));
+		} else if(!type.equals("knn")){
+			System.err.println("WRN: Unknown classifier type " + type + ", using knn");
+		}
+		return knn;
+	}
+
+	/**
+	 * @return the length of the feature vectors of the given category
+	 */
+	public static int getDimensions(FeatureCategory cat){
+		switch(cat){
+		case COLOR:
+			return 6;
+		case SHAPE:
+			return 15;
+		case SIZE:
+			return 2;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the index named by classify.<category>.index ("kdtree",
+	 *         "vptree", "lsh"), or null for a linear scan
+	 */
+	private static INeighborIndex createIndex(Config config, FeatureCategory cat){
+		String prefix = "classify." + cat.toString().toLowerCase() + ".";
+		String type = config.getString(prefix + "index", "linear");
+		if(type.equals("kdtree")){
+			return new KDTree();
+		} else if(type.equals("vptree")){
+			return new VPTree();
+		} else if(type.equals("lsh")){
+			// Approximate, see LSHIndex.main for the recall of each setting
+			return new LSHIndex(config.getInt(prefix + "lsh_tables", LSHIndex.DEFAULT_TABLES),
+					config.getInt(prefix + "lsh_hashes", LSHIndex.DEFAULT_HASHES),
+					config.getDouble(prefix + "lsh_width", LSHIndex.DEFAULT_WIDTH));
+		} else if(!type.equals("linear")){
+			System.err.println("WRN: Unknown index type " + type + ", using a linear scan");
+		}
+		return null;
 	}
 	
 	public ConfidenceLabel classify(FeatureCategory cat, BoltObject obj){
-		IClassifier classifier = classifiers.get(cat);
-		ArrayList<Double> features = obj.getFeatures(cat);
+		double[] features = obj.getFeatureArray(cat);
 		if(features == null){
 			return null;
 		}
-		ConfidenceLabel label;
-		synchronized(classifier){
+		IClassifier classifier = classifiers.get(cat).get();
+		ConfidenceLabel label = cache.get(cat, obj.getID(), features, classifier);
+		if(label == null){
 			label = classifier.classify(features);
+			cache.put(cat, obj.getID(), features, classifier, label);
 		}
 		return label;
 	}
 	
+	/**
+	 * @return the cache of object labels, e.g. for its hit rate
+	 */
+	public ClassificationCache getCache(){
+		return cache;
+	}
+	
+	/**
+	 * Queues a training example, it is used by classify once the updater
+	 * has added it to a new snapshot
+	 */
 	public void addDataPoint(FeatureCategory cat, ArrayList<Double> features, String label){
-		IClassifier classifier = classifiers.get(cat);
-		synchronized(classifier){
-			classifier.add(features, label);
-		}
+		addDataPoint(cat, FEUtil.toArray(features), label);
+	}
+	
+	public void addDataPoint(final FeatureCategory cat, double[] features, final String label){
+		// Copied since the example is added later
+		final double[] example = features.clone();
+		queueUpdate(new Update(){
+			void apply(HashMap<FeatureCategory, IClassifier> working){
+				getWorking(working, cat).add(example, label);
+				TrainingJournal journal = journals.get(cat);
+				if(journal != null){
+					journal.append(example, label);
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Queues removing every example from the classifiers
+	 */
 	public void clearData(){
-		for(IClassifier classifier : classifiers.values()){
-			synchronized(classifier){
-				classifier.clearData();
+		queueUpdate(new Update(){
+			void apply(HashMap<FeatureCategory, IClassifier> working){
+				for(FeatureCategory cat : classifiers.keySet()){
+					getWorking(working, cat).clearData();
+				}
 			}
-		}
+		});
 	}
 	
+	/**
+	 * Queues reloading the classifiers from their data files and journals.
+	 * Classification keeps using the old data until the reload is done, and
+	 * goes on using it for a category whose data could not be read.
+	 */
 	public void reloadData(){
-		for(IClassifier classifier : classifiers.values()){
-			synchronized(classifier){
-				classifier.clearData();
-				classifier.loadData();
+		queueUpdate(new Update(){
+			void apply(HashMap<FeatureCategory, IClassifier> working){
+				for(FeatureCategory cat : classifiers.keySet()){
+					// Loaded into a copy that only replaces the working one
+					// once it has all of its data
+					IClassifier fresh = classifiers.get(cat).get().copy();
+					fresh.clearData();
+					TrainingJournal journal = journals.get(cat);
+					// The journal keeps compaction from moving examples into
+					// the data file between reading it and replaying
+					boolean loaded = (journal != null ? journal.loadAndReplay(fresh) : fresh.loadData());
+					if(!loaded){
+						System.err.println("ERR: Keeping the current " + cat + " classifier, its data could not be reloaded");
+						continue;
+					}
+					working.put(cat, fresh);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Blocks until every change queued before the call is in use
+	 */
+	public synchronized void waitForUpdates(){
+		long target = numQueued;
+		while(numApplied < target){
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
 			}
 		}
 	}
 	
-	public void updateObject(BoltObject object){
+	private void queueUpdate(Update update){
+		synchronized(this){
+			numQueued++;
+		}
+		updates.add(update);
+	}
+	
+	/**
+	 * Runs on the updater thread: applies everything that is queued to
+	 * copies of the current classifiers, then publishes the copies
+	 */
+	private void applyUpdates(){
+		ArrayList<Update> batch = new ArrayList<Update>();
+		while(true){
+			try {
+				batch.add(updates.take());
+			} catch (InterruptedException ex) {
+				return;
+			}
+			updates.drainTo(batch);
+			
+			HashMap<FeatureCategory, IClassifier> working = new HashMap<FeatureCategory, IClassifier>();
+			for(Update update : batch){
+				try {
+					update.apply(working);
+				} catch (RuntimeException ex) {
+					// The copies it touched may be half changed, so the
+					// categories keep their current snapshot
+					System.err.println("ERR: Could not update the classifiers, dropping this batch's changes to "
+							+ update.touched);
+					ex.printStackTrace();
+					for(FeatureCategory cat : update.touched){
+						working.remove(cat);
+					}
+				}
+			}
+			for(FeatureCategory cat : working.keySet()){
+				classifiers.get(cat).set(working.get(cat));
+				cache.invalidate(cat);
+			}
+			
+			synchronized(this){
+				numApplied += batch.size();
+				notifyAll();
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Classifies every object of a frame, with one classifyBatch call per
+	 * category instead of a query per object. Objects found in the cache
+	 * are not classified again.
+	 */
+	public void updateObjects(Collection<? extends BoltObject> objects){
 		for(FeatureCategory cat : FeatureCategory.values()){
-			ArrayList<Double> features = object.getFeatures(cat);
-			if(features != null){
-				IClassifier classifier = classifiers.get(cat);
-				synchronized(classifier){
-					object.getLabels().updateLabel(cat, classifier.classify(features));
+			IClassifier classifier = classifiers.get(cat).get();
+			ArrayList<BoltObject> batch = new ArrayList<BoltObject>();
+			ArrayList<double[]> features = new ArrayList<double[]>();
+			for(BoltObject object : objects){
+				double[] f = object.getFeatureArray(cat);
+				if(f == null){
+					continue;
+				}
+				ConfidenceLabel cached = cache.get(cat, object.getID(), f, classifier);
+				if(cached != null){
+					object.getLabels().updateLabel(cat, cached);
+				} else {
+					batch.add(object);
+					features.add(f);
 				}
 			}
+			if(batch.isEmpty()){
+				continue;
+			}
+			ConfidenceLabel[] labels = classifier.classifyBatch(features.toArray(new double[features.size()][]));
+			for(int i = 0; i < batch.size(); i++){
+				cache.put(cat, batch.get(i).getID(), features.get(i), classifier, labels[i]);
+				batch.get(i).getLabels().updateLabel(cat, labels[i]);
+			}
+		}
+	}
+	
+	public void updateObject(BoltObject object){
+		for(FeatureCategory cat : FeatureCategory.values()){
+			ConfidenceLabel label = classify(cat, object);
+			if(label != null){
+				object.getLabels().updateLabel(cat, label);
+			}
 		}
 	}
 }
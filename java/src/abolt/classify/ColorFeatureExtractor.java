@@ -10,17 +10,161 @@ import abolt.kinect.ObjectInfo;
  * @purpose Contains methods for extracting color features from an object or point cloud
  */
 public class ColorFeatureExtractor{
+	// Lookup tables for the HSB conversion of 8 bit channels, holding the
+	// same floats Color.RGBtoHSB computes:
+	//   BRIGHTNESS[max] = max / 255
+	//   RATIO[a*256 + b] = b / a for b <= a, which gives the saturation
+	//   (max - min) / max and the hue terms x / (max - min)
+	private static final float[] BRIGHTNESS = new float[256];
+	private static final float[] RATIO = new float[256 * 256];
+	static {
+		for (int a = 0; a < 256; a++) {
+			BRIGHTNESS[a] = ((float) a) / 255.0f;
+			for (int b = 0; b <= a; b++) {
+				RATIO[a * 256 + b] = (a == 0 ? 0 : ((float) b) / ((float) a));
+			}
+		}
+	}
+	
+	// Layout of getStatistics
+	public static final int NUM_STATISTICS = 12;
+	
 	public static ArrayList<Double> getFeatures(ObjectInfo object) {
 		return getFeatures(object.points);
 	}
 
 	public static ArrayList<Double> getFeatures(ArrayList<double[]> points) {
-		ArrayList<Double> features = new ArrayList<Double>();
-		FEUtil.addArray(features, avgRGB(points));
-		FEUtil.addArray(features, avgHSV(points));
+		return FEUtil.toList(getFeatureArray(points));
+	}
+
+	/**
+	 * @return [r, g, b, h, s, v] averages
+	 */
+	public static double[] getFeatureArray(ArrayList<double[]> points) {
+		return getFeatureArray(getStatistics(points));
+	}
+	
+	/**
+	 * @return the [r, g, b, h, s, v] averages of the result of getStatistics
+	 */
+	public static double[] getFeatureArray(double[] statistics) {
+		double[] features = new double[6];
+		System.arraycopy(statistics, 0, features, 0, 6);
 		return features;
 	}
 	
+	/**
+	 * Finds the averages and variances of the red, green, blue, hue,
+	 * saturation and value of a group of pixels in a single pass, without
+	 * creating a Color per pixel. The averages are the same as avgRGB and
+	 * avgHSV; the variances are about the averages, in the same 0 to 1
+	 * units. Pixels are assumed to have four coordinates, (x, y, z, rgb).
+	 **
+	 * @return [r, g, b, h, s, v] averages followed by [r, g, b, h, s, v]
+	 *         variances
+	 **/
+	public static double[] getStatistics(ArrayList<double[]> points)
+	{
+		ColorAccumulator sums = new ColorAccumulator();
+		for (double[] p : points) {
+			sums.add((int) p[3]);
+		}
+		return sums.getStatistics();
+	}
+	
+	/**
+	 * Running sums of the colors of a growing group of pixels, from which
+	 * getStatistics needs no pass over the pixels
+	 */
+	public static class ColorAccumulator {
+		private int count = 0;
+		// The color channels are exact in longs
+		private final long[] sums = new long[3];
+		private final long[] squares = new long[3];
+		private final double[] hsvSums = new double[3];
+		private final double[] hsvSquares = new double[3];
+		
+		public int getCount() {
+			return count;
+		}
+		
+		/**
+		 * Adds a pixel with the given packed color
+		 */
+		public void add(int c) {
+			// Points are stored bgr, so "red" is the low byte
+			int r = c & 0xff;
+			int g = (c >> 8) & 0xff;
+			int b = (c >> 16) & 0xff;
+			sums[0] += r;
+			sums[1] += g;
+			sums[2] += b;
+			squares[0] += r * r;
+			squares[1] += g * g;
+			squares[2] += b * b;
+			
+			int cmax = (r > g ? r : g);
+			cmax = (b > cmax ? b : cmax);
+			int cmin = (r < g ? r : g);
+			cmin = (b < cmin ? b : cmin);
+			int range = cmax - cmin;
+			double h = hue(r, g, b, cmax, range);
+			double s = RATIO[cmax * 256 + range];
+			double v = BRIGHTNESS[cmax];
+			hsvSums[0] += h;
+			hsvSums[1] += s;
+			hsvSums[2] += v;
+			hsvSquares[0] += h * h;
+			hsvSquares[1] += s * s;
+			hsvSquares[2] += v * v;
+			count++;
+		}
+		
+		/**
+		 * @return the statistics of the pixels added so far, laid out as
+		 *         for ColorFeatureExtractor.getStatistics
+		 */
+		public double[] getStatistics() {
+			int n = count;
+			double[] stats = new double[NUM_STATISTICS];
+			for (int i = 0; i < 3; i++) {
+				stats[i] = sums[i] / (255.0 * n);
+				stats[3 + i] = hsvSums[i] / n;
+				stats[6 + i] = (n * squares[i] - sums[i] * sums[i]) / (255.0 * 255.0 * n * n);
+				double hsvMean = stats[3 + i];
+				stats[9 + i] = Math.max(0, hsvSquares[i] / n - hsvMean * hsvMean);
+			}
+			return stats;
+		}
+	}
+	
+	/**
+	 * The hue exactly as Color.RGBtoHSB computes it
+	 */
+	private static float hue(int r, int g, int b, int cmax, int range)
+	{
+		if (range == 0) {
+			return 0;
+		}
+		int row = range * 256;
+		float redc = RATIO[row + cmax - r];
+		float greenc = RATIO[row + cmax - g];
+		float bluec = RATIO[row + cmax - b];
+		float hue;
+		if (r == cmax) {
+			hue = bluec - greenc;
+		} else if (g == cmax) {
+			hue = 2.0f + redc - bluec;
+		} else {
+			hue = 4.0f + greenc - redc;
+		}
+		hue = hue / 6.0f;
+		if (hue < 0) {
+			hue = hue + 1.0f;
+		}
+		return hue;
+	}
+	
 	/**
 	 * Find the average red, green, and blue values for a group of pixels.
 	 * pixels are assumed to have four coordinates, (x, y, z, rgb).
@@ -30,13 +174,7 @@ public class ColorFeatureExtractor{
 	public static double[] avgRGB(ArrayList<double[]> points)
     {
 		double[] avg = new double[3];
-		for (double[] p : points) {
-			Color bgr = new Color((int) p[3]);
-			avg[2] += bgr.getRed();
-			avg[1] += bgr.getGreen();
-			avg[0] += bgr.getBlue();
-		}
-		FEUtil.divideEquals(avg, 255.0 * points.size());
+		System.arraycopy(getStatistics(points), 0, avg, 0, 3);
 		return avg;
 	}
 
@@ -69,15 +207,7 @@ public class ColorFeatureExtractor{
 	public static double[] avgHSV(ArrayList<double[]> points)
     {
 		double[] avg = new double[3];
-		float[] hsv = new float[3];
-		for (double[] p : points) {
-			Color rgb = new Color((int) p[3]);
-			Color.RGBtoHSB(rgb.getBlue(), rgb.getGreen(), rgb.getRed(), hsv);
-			for (int i = 0; i < avg.length; i++) {
-				avg[i] += (double) hsv[i];
-			}
-		}
-		FEUtil.divideEquals(avg, points.size());
+		System.arraycopy(getStatistics(points), 3, avg, 0, 3);
 		return avg;
 	}
 
@@ -105,8 +235,12 @@ public class ColorFeatureExtractor{
 	}
 	
 	public static Color getColorFromFeatures(ArrayList<Double> colorFeatures){
-		return new Color((float)colorFeatures.get(0).doubleValue(),
-				         (float)colorFeatures.get(1).doubleValue(),
-				         (float)colorFeatures.get(2).doubleValue());
+		return getColorFromFeatures(FEUtil.toArray(colorFeatures));
+	}
+
+	public static Color getColorFromFeatures(double[] colorFeatures){
+		return new Color((float)colorFeatures[0],
+				         (float)colorFeatures[1],
+				         (float)colorFeatures[2]);
 	}
 }
@@ -0,0 +1,193 @@
+package abolt.classify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * @purpose Counts how often examples of each actual label were classified as
+ *          each predicted label. Predictions of "unknown" are counted
+ *          separately and, like in KNN.LOOCV, left out of the accuracy.
+ */
+public class ConfusionMatrix {
+    private ArrayList<String> labels;
+    private HashMap<String, Integer> labelIndex;
+    // counts[actual][predicted]
+    private int[][] counts;
+    // unknowns[actual]
+    private int[] unknowns;
+
+    public ConfusionMatrix() {
+        labels = new ArrayList<String>();
+        labelIndex = new HashMap<String, Integer>();
+        counts = new int[0][0];
+        unknowns = new int[0];
+    }
+
+    private int getIndex(String label) {
+        Integer index = labelIndex.get(label);
+        if (index != null) {
+            return index;
+        }
+        index = labels.size();
+        labels.add(label);
+        labelIndex.put(label, index);
+
+        int n = labels.size();
+        int[][] newCounts = new int[n][n];
+        for (int i = 0; i < n - 1; i++) {
+            System.arraycopy(counts[i], 0, newCounts[i], 0, n - 1);
+        }
+        counts = newCounts;
+        int[] newUnknowns = new int[n];
+        System.arraycopy(unknowns, 0, newUnknowns, 0, n - 1);
+        unknowns = newUnknowns;
+        return index;
+    }
+
+    public void add(String actual, String predicted) {
+        add(actual, predicted, 1);
+    }
+
+    private void add(String actual, String predicted, int count) {
+        int a = getIndex(actual);
+        if (predicted == null || predicted.equals("unknown")) {
+            unknowns[a] += count;
+        } else {
+            int p = getIndex(predicted);
+            counts[a][p] += count;
+        }
+    }
+
+    /**
+     * Adds all of the counts in other to this matrix
+     */
+    public void merge(ConfusionMatrix other) {
+        for (int a = 0; a < other.labels.size(); a++) {
+            String actual = other.labels.get(a);
+            for (int p = 0; p < other.labels.size(); p++) {
+                if (other.counts[a][p] > 0) {
+                    add(actual, other.labels.get(p), other.counts[a][p]);
+                }
+            }
+            if (other.unknowns[a] > 0) {
+                add(actual, "unknown", other.unknowns[a]);
+            }
+        }
+    }
+
+    public ArrayList<String> getLabels() {
+        return labels;
+    }
+
+    public int getCount(String actual, String predicted) {
+        Integer a = labelIndex.get(actual);
+        if (a == null) {
+            return 0;
+        }
+        if (predicted.equals("unknown")) {
+            return unknowns[a];
+        }
+        Integer p = labelIndex.get(predicted);
+        return (p == null ? 0 : counts[a][p]);
+    }
+
+    /**
+     * @return the number of examples that got a label other than "unknown"
+     */
+    public int getNumClassified() {
+        int total = 0;
+        for (int a = 0; a < labels.size(); a++) {
+            for (int p = 0; p < labels.size(); p++) {
+                total += counts[a][p];
+            }
+        }
+        return total;
+    }
+
+    public int getNumCorrect() {
+        int correct = 0;
+        for (int a = 0; a < labels.size(); a++) {
+            correct += counts[a][a];
+        }
+        return correct;
+    }
+
+    public int getNumUnknown() {
+        int total = 0;
+        for (int a = 0; a < labels.size(); a++) {
+            total += unknowns[a];
+        }
+        return total;
+    }
+
+    /**
+     * @return the fraction of classified examples that got the right label
+     */
+    public double getAccuracy() {
+        return (double) getNumCorrect() / (double) getNumClassified();
+    }
+
+    /**
+     * @return the fraction of classified examples of the label that got it
+     */
+    public double getRecall(String label) {
+        Integer a = labelIndex.get(label);
+        if (a == null) {
+            return 0;
+        }
+        int total = 0;
+        for (int p = 0; p < labels.size(); p++) {
+            total += counts[a][p];
+        }
+        return (double) counts[a][a] / (double) total;
+    }
+
+    /**
+     * @return the fraction of examples given the label that really had it
+     */
+    public double getPrecision(String label) {
+        Integer p = labelIndex.get(label);
+        if (p == null) {
+            return 0;
+        }
+        int total = 0;
+        for (int a = 0; a < labels.size(); a++) {
+            total += counts[a][p];
+        }
+        return (double) counts[p][p] / (double) total;
+    }
+
+    /**
+     * @return a table with one row per actual label and one column per
+     *         predicted label, followed by the unknowns and the recall
+     */
+    public String toString() {
+        int width = 8;
+        for (String label : labels) {
+            width = Math.max(width, label.length() + 1);
+        }
+        String cell = "%" + width + "s";
+        String num = "%" + width + "d";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(cell, "actual"));
+        for (String label : labels) {
+            sb.append(String.format(cell, label));
+        }
+        sb.append(String.format(cell, "unknown"));
+        sb.append(String.format(cell, "recall"));
+        sb.append("\n");
+        for (int a = 0; a < labels.size(); a++) {
+            sb.append(String.format(cell, labels.get(a)));
+            for (int p = 0; p < labels.size(); p++) {
+                sb.append(String.format(num, counts[a][p]));
+            }
+            sb.append(String.format(num, unknowns[a]));
+            sb.append(String.format("%" + width + ".3f", getRecall(labels.get(a))));
+            sb.append("\n");
+        }
+        sb.append(String.format("accuracy %.4f (%d/%d), %d unknown\n", getAccuracy(),
+                                getNumCorrect(), getNumClassified(), getNumUnknown()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package abolt.classify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import abolt.classify.Features.FeatureCategory;
+import abolt.util.ParallelUtil;
+import april.util.GetOpt;
+
+/**
+ * @purpose Leave-one-out and k-fold cross validation of classifiers, split
+ *          across all cores. Results are reported as a ConfusionMatrix.
+ */
+public class CrossValidator {
+    /**
+     * Creates the empty classifiers that are trained on each fold
+     */
+    public interface ClassifierFactory {
+        IClassifier create();
+    }
+
+    /**
+     * Leave-one-out cross validation of an already trained KNN. Instead of
+     * retraining, every stored example is classified with all of its rows
+     * left out of its neighbours (see KNN.classifyExcluding), so this costs
+     * one query per example.
+     */
+    public static ConfusionMatrix leaveOneOut(final KNN knn) {
+        final ITrainingData data = knn.getData();
+        final int rowsPerExample = knn.getRowsPerExample();
+        int[] bounds = ParallelUtil.split(data.size() / rowsPerExample, 64);
+
+        List<Callable<ConfusionMatrix>> tasks = new ArrayList<Callable<ConfusionMatrix>>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            final int start = bounds[i];
+            final int end = bounds[i + 1];
+            tasks.add(new Callable<ConfusionMatrix>() {
+                public ConfusionMatrix call() {
+                    ConfusionMatrix cm = new ConfusionMatrix();
+                    for (int example = start; example < end; example++) {
+                        int row = example * rowsPerExample;
+                        cm.add(data.getLabel(row), knn.classifyExcluding(row, rowsPerExample).getLabel());
+                    }
+                    return cm;
+                }
+            });
+        }
+        return mergeAll(ParallelUtil.invokeAll(tasks));
+    }
+
+    /**
+     * Leave-one-out cross validation of any classifier: one fold per
+     * example, each trained from scratch on all of the other examples
+     */
+    public static ConfusionMatrix leaveOneOut(TrainingSet data, ClassifierFactory factory) {
+        return kFold(data, data.size(), factory);
+    }
+
+    /**
+     * k-fold cross validation of any classifier. Example i is tested in
+     * fold i % folds, which stratifies files that are grouped by label.
+     */
+    public static ConfusionMatrix kFold(final TrainingSet data, final int folds,
+                                        final ClassifierFactory factory) {
+        int[] bounds = ParallelUtil.split(folds, 1);
+
+        List<Callable<ConfusionMatrix>> tasks = new ArrayList<Callable<ConfusionMatrix>>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            final int start = bounds[i];
+            final int end = bounds[i + 1];
+            tasks.add(new Callable<ConfusionMatrix>() {
+                public ConfusionMatrix call() {
+                    ConfusionMatrix cm = new ConfusionMatrix();
+                    for (int fold = start; fold < end; fold++) {
+                        testFold(data, folds, fold, factory.create(), cm);
+                    }
+                    return cm;
+                }
+            });
+        }
+        return mergeAll(ParallelUtil.invokeAll(tasks));
+    }
+
+    private static void testFold(TrainingSet data, int folds, int fold,
+                                 IClassifier classifier, ConfusionMatrix cm) {
+        int n = data.size();
+        for (int row = 0; row < n; row++) {
+            if (row % folds != fold) {
+                classifier.add(data.getRow(row), data.getLabel(row));
+            }
+        }
+        for (int row = fold; row < n; row += folds) {
+            ConfidenceLabel cl = classifier.classify(data.getRow(row));
+            cm.add(data.getLabel(row), cl.getLabel());
+        }
+    }
+
+    private static ConfusionMatrix mergeAll(List<ConfusionMatrix> parts) {
+        ConfusionMatrix cm = new ConfusionMatrix();
+        for (ConfusionMatrix part : parts) {
+            cm.merge(part);
+        }
+        return cm;
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('i', "infile", null, "Training data (.dat) file");
+        opts.addString('t', "type", "color", "Type of features in the file: {color, shape, size}");
+        opts.addInt('k', "folds", 0, "Number of folds, 0 for leave-one-out");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help") || opts.getString("infile") == null) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        final FeatureCategory cat = FeatureCategory.valueOf(opts.getString("type").toUpperCase());
+        final String datafile = opts.getString("infile");
+        int folds = opts.getInt("folds");
+
+        long start = System.currentTimeMillis();
+        ConfusionMatrix cm;
+        KNN knn = ClassifierManager.createKNN(cat, datafile);
+        if (folds <= 0) {
+            knn.loadData();
+            cm = leaveOneOut(knn);
+        } else {
+            TrainingSet data;
+            try {
+                data = TrainingSet.load(datafile, knn.getData().getDim());
+            } catch (Exception ex) {
+                System.err.println("ERR: Could not load " + datafile);
+                ex.printStackTrace();
+                return;
+            }
+            cm = kFold(data, folds, new ClassifierFactory() {
+                public IClassifier create() {
+                    return ClassifierManager.createKNN(cat, datafile);
+                }
+            });
+        }
+        long end = System.currentTimeMillis();
+
+        System.out.print(cm);
+        System.out.printf("%s: %d ms on %d threads\n", (folds <= 0 ? "leave-one-out" : folds + "-fold"),
+                          end - start, ParallelUtil.getNumThreads());
+    }
+}
@@ -0,0 +1,376 @@
+package abolt.classify;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import abolt.util.ParallelUtil;
+
+/**
+ * @purpose Single pass parser for the text training format, lines of the
+ *          form "[f1 f2 ... fn ] {label}". Bytes are read straight out of a
+ *          buffer into a reused double[], without regular expressions,
+ *          intermediate Strings or boxing.
+ *
+ *          A number may have a sign, a fraction and an exponent, e.g.
+ *          "-1.5e-3"; any other character before the label separates
+ *          numbers. The label is everything between the first '{' and the
+ *          last '}' of the line. Blank lines are skipped.
+ *
+ *          parse() splits a whole file at line breaks into chunks that are
+ *          parsed on ParallelUtil's pool and joined in file order.
+ */
+public class DataFileParser {
+    // Files smaller than this many bytes per core are not split
+    private static final int MIN_CHUNK = 1 << 16;
+
+    // Powers of ten that are exact as doubles
+    private static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+                                             1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+                                             1e20, 1e21, 1e22 };
+
+    // Largest mantissa that converts to a double exactly, 2^53
+    private static final long MAX_EXACT = 1L << 53;
+
+    private final ByteBuffer buf;
+    private final int end;
+    private int pos;
+
+    // The line last returned by next()
+    private double[] values = new double[16];
+    private int numValues = 0;
+    private String label = null;
+
+    // Labels repeat from line to line, so the last one is reused
+    private byte[] labelBytes = new byte[32];
+    private int labelLength = -1;
+    private String lastLabel = null;
+
+    private char[] scratch = new char[32];
+
+    /**
+     * Parses the lines in [start, end) of buf, which is only read with
+     * absolute gets so several parsers can share it
+     */
+    public DataFileParser(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /**
+     * @return a parser over the whole of file
+     */
+    public static DataFileParser open(String file) throws IOException {
+        ByteBuffer buf = readFile(file);
+        return new DataFileParser(buf, 0, buf.limit());
+    }
+
+    /**
+     * @return a parser over a single line
+     */
+    public static DataFileParser forLine(String line) {
+        byte[] bytes;
+        try {
+            bytes = line.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        return new DataFileParser(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Reads the file into a heap buffer. It is not memory mapped because a
+     * mapping keeps the file locked on some platforms, and TrainingJournal
+     * rewrites .dat and .bin files while the program runs.
+     */
+    static ByteBuffer readFile(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to parse");
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the examples of a .dat file, skipping lines without dim features
+     */
+    public static TrainingSet parse(String datafile, final int dim) throws IOException {
+        final ByteBuffer buf = readFile(datafile);
+        int size = buf.limit();
+
+        // Move every split to just after a line break
+        int[] bounds = ParallelUtil.split(size, MIN_CHUNK);
+        for (int i = 1; i + 1 < bounds.length; i++) {
+            int b = Math.max(bounds[i], bounds[i - 1]);
+            while (b < size && buf.get(b - 1) != '\n') {
+                b++;
+            }
+            bounds[i] = b;
+        }
+
+        if (bounds.length == 2) {
+            return parseChunk(buf, 0, size, dim);
+        }
+        List<Callable<TrainingSet>> tasks = new ArrayList<Callable<TrainingSet>>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            final int start = bounds[i];
+            final int stop = bounds[i + 1];
+            tasks.add(new Callable<TrainingSet>() {
+                public TrainingSet call() {
+                    return parseChunk(buf, start, stop, dim);
+                }
+            });
+        }
+        ArrayList<TrainingSet> parts = ParallelUtil.invokeAll(tasks);
+        TrainingSet set = parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            set.addAll(parts.get(i));
+        }
+        return set;
+    }
+
+    private static TrainingSet parseChunk(ByteBuffer buf, int start, int stop, int dim) {
+        TrainingSet set = new TrainingSet(dim);
+        DataFileParser parser = new DataFileParser(buf, start, stop);
+        double[] pt = new double[dim];
+        while (parser.next()) {
+            if (parser.getNumValues() != dim) {
+                continue;
+            }
+            String label = parser.getLabel();
+            if (label == null) {
+                System.out.println("ERROR: no label found on training data");
+                label = "unknown";
+            }
+            System.arraycopy(parser.getValues(), 0, pt, 0, dim);
+            set.add(pt, label);
+        }
+        return set;
+    }
+
+    /**
+     * Moves to the next non-blank line
+     * @return false once there are no more lines
+     */
+    public boolean next() {
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int start = pos;
+            pos = lineEnd + 1;
+            if (parseLine(start, lineEnd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of values on the current line
+     */
+    public int getNumValues() {
+        return numValues;
+    }
+
+    /**
+     * @return the values of the current line in the first getNumValues()
+     *         entries, overwritten by the next call to next()
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return the label of the current line, or null if it has none
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return false if the line is blank
+     */
+    private boolean parseLine(int start, int stop) {
+        int open = -1, close = -1;
+        for (int i = start; i < stop; i++) {
+            if (buf.get(i) == '{') {
+                open = i;
+                break;
+            }
+        }
+        if (open >= 0) {
+            for (int i = stop - 1; i > open; i--) {
+                if (buf.get(i) == '}') {
+                    close = i;
+                    break;
+                }
+            }
+        }
+        label = (close >= 0 ? decodeLabel(open + 1, close) : null);
+
+        numValues = 0;
+        int numEnd = (open >= 0 ? open : stop);
+        boolean blank = true;
+        for (int i = start; i < numEnd;) {
+            byte c = buf.get(i);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+                i = parseNumber(i, numEnd);
+            } else {
+                blank &= (c == ' ' || c == '\t' || c == '\r');
+                i++;
+            }
+        }
+        return !(blank && numValues == 0 && open < 0);
+    }
+
+    /**
+     * Appends the number starting at start, if there is one
+     * @return the index after it
+     */
+    private int parseNumber(int start, int limit) {
+        int i = start;
+        byte c = buf.get(i);
+        boolean negative = (c == '-');
+        if (c == '-' || c == '+') {
+            i++;
+        }
+
+        // value = mantissa * 10^exponent, mantissa is exact for up to 18 digits
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        for (; i < limit && (c = buf.get(i)) >= '0' && c <= '9'; i++) {
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits += (mantissa != 0 ? 1 : 0);
+            } else {
+                digits++;
+            }
+        }
+        if (i < limit && buf.get(i) == '.') {
+            i++;
+            for (; i < limit && (c = buf.get(i)) >= '0' && c <= '9'; i++) {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits += (mantissa != 0 ? 1 : 0);
+                    exponent--;
+                }
+            }
+        }
+        if (!any) {
+            return i;
+        }
+        if (i < limit && ((c = buf.get(i)) == 'e' || c == 'E')) {
+            int j = i + 1;
+            boolean expNegative = false;
+            if (j < limit && ((c = buf.get(j)) == '-' || c == '+')) {
+                expNegative = (c == '-');
+                j++;
+            }
+            int exp = 0;
+            boolean expAny = false;
+            for (; j < limit && (c = buf.get(j)) >= '0' && c <= '9'; j++) {
+                expAny = true;
+                exp = Math.min(exp * 10 + (c - '0'), 100000);
+            }
+            if (expAny) {
+                exponent += (expNegative ? -exp : exp);
+                i = j;
+            }
+        }
+
+        double value;
+        if (digits <= 18 && mantissa <= MAX_EXACT && exponent >= -22 && exponent <= 22) {
+            // A single correctly rounded operation on exact operands, so the
+            // same double as Double.parseDouble
+            value = (exponent < 0 ? mantissa / POWERS[-exponent] : mantissa * POWERS[exponent]);
+            value = (negative ? -value : value);
+        } else {
+            value = Double.parseDouble(text(start, i));
+        }
+
+        if (numValues == values.length) {
+            double[] grown = new double[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, numValues);
+            values = grown;
+        }
+        values[numValues++] = value;
+        return i;
+    }
+
+    private String text(int from, int to) {
+        int n = to - from;
+        if (scratch.length < n) {
+            scratch = new char[n];
+        }
+        for (int i = 0; i < n; i++) {
+            scratch[i] = (char) buf.get(from + i);
+        }
+        return new String(scratch, 0, n);
+    }
+
+    private String decodeLabel(int from, int to) {
+        int n = to - from;
+        boolean same = (n == labelLength);
+        for (int i = 0; same && i < n; i++) {
+            same = (labelBytes[i] == buf.get(from + i));
+        }
+        if (same) {
+            return lastLabel;
+        }
+        if (labelBytes.length < n) {
+            labelBytes = new byte[n];
+        }
+        for (int i = 0; i < n; i++) {
+            labelBytes[i] = buf.get(from + i);
+        }
+        labelLength = n;
+        try {
+            lastLabel = new String(labelBytes, 0, n, "UTF-8");
+            return lastLabel;
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Times parsing a .dat file: DataFileParser file dim
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DataFileParser <file.dat> <dim>");
+            System.exit(1);
+        }
+        int dim = Integer.parseInt(args[1]);
+        TrainingSet set = null;
+        long best = Long.MAX_VALUE;
+        for (int pass = 0; pass < 10; pass++) {
+            long start = System.nanoTime();
+            set = parse(args[0], dim);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%d examples, %d labels, %.2f ms on up to %d threads\n", set.size(),
+                          set.numLabels(), best / 1e6, ParallelUtil.getNumThreads());
+    }
+}
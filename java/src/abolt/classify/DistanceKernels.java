@@ -0,0 +1,176 @@
+package abolt.classify;
+
+import java.util.Random;
+
+/**
+ * @purpose Squared euclidean distance between a query and a row of a packed
+ *          row-major array, fully unrolled for the 2 (size), 6 (color) and
+ *          15 (shape) dimensional features used by ClassifierManager, with a
+ *          plain loop for any other dimension. The terms are added in
+ *          dimension order, exactly like the loop, so every kernel returns
+ *          bit-identical sums.
+ *
+ *          The bounded kernels may return early once the partial sum reaches
+ *          bound, in which case the value is only guaranteed to be >= bound.
+ *          The unrolled ones check the bound every few terms instead of
+ *          after each one.
+ *
+ *          main() times the kernels against the plain loop.
+ */
+public final class DistanceKernels {
+    private DistanceKernels() {
+    }
+
+    /**
+     * @return the squared distance from pt to the dim values of coords
+     *         starting at off
+     */
+    public static double distanceSq(double[] coords, int off, double[] pt, int dim) {
+        switch (dim) {
+        case 2:
+            return distanceSq2(coords, off, pt);
+        case 6:
+            return distanceSq6(coords, off, pt);
+        case 15:
+            return distanceSq15(coords, off, pt, Double.POSITIVE_INFINITY);
+        default:
+            return distanceSqLoop(coords, off, pt, dim, Double.POSITIVE_INFINITY);
+        }
+    }
+
+    /**
+     * Same as distanceSq, but may stop summing once the partial sum reaches
+     * bound, in which case some value >= bound is returned
+     */
+    public static double distanceSq(double[] coords, int off, double[] pt, int dim, double bound) {
+        switch (dim) {
+        case 2:
+            return distanceSq2(coords, off, pt);
+        case 6:
+            return distanceSq6(coords, off, pt);
+        case 15:
+            return distanceSq15(coords, off, pt, bound);
+        default:
+            return distanceSqLoop(coords, off, pt, dim, bound);
+        }
+    }
+
+    /**
+     * The scalar fallback for any dimension
+     */
+    public static double distanceSqLoop(double[] coords, int off, double[] pt, int dim, double bound) {
+        double sum = 0;
+        for (int i = 0; i < dim; i++) {
+            double d = coords[off + i] - pt[i];
+            sum += d * d;
+            if (sum >= bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    public static double distanceSq2(double[] c, int off, double[] p) {
+        double d0 = c[off] - p[0];
+        double d1 = c[off + 1] - p[1];
+        return d0 * d0 + d1 * d1;
+    }
+
+    // Too short for an early exit to pay off
+    public static double distanceSq6(double[] c, int off, double[] p) {
+        double d0 = c[off] - p[0];
+        double d1 = c[off + 1] - p[1];
+        double d2 = c[off + 2] - p[2];
+        double d3 = c[off + 3] - p[3];
+        double d4 = c[off + 4] - p[4];
+        double d5 = c[off + 5] - p[5];
+        return d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3 + d4 * d4 + d5 * d5;
+    }
+
+    /**
+     * Checks the bound after the first 5 and 10 terms
+     */
+    public static double distanceSq15(double[] c, int off, double[] p, double bound) {
+        double d0 = c[off] - p[0];
+        double d1 = c[off + 1] - p[1];
+        double d2 = c[off + 2] - p[2];
+        double d3 = c[off + 3] - p[3];
+        double d4 = c[off + 4] - p[4];
+        double sum = d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3 + d4 * d4;
+        if (sum >= bound) {
+            return sum;
+        }
+        double d5 = c[off + 5] - p[5];
+        double d6 = c[off + 6] - p[6];
+        double d7 = c[off + 7] - p[7];
+        double d8 = c[off + 8] - p[8];
+        double d9 = c[off + 9] - p[9];
+        sum = sum + d5 * d5 + d6 * d6 + d7 * d7 + d8 * d8 + d9 * d9;
+        if (sum >= bound) {
+            return sum;
+        }
+        double d10 = c[off + 10] - p[10];
+        double d11 = c[off + 11] - p[11];
+        double d12 = c[off + 12] - p[12];
+        double d13 = c[off + 13] - p[13];
+        double d14 = c[off + 14] - p[14];
+        return sum + d10 * d10 + d11 * d11 + d12 * d12 + d13 * d13 + d14 * d14;
+    }
+
+    /**
+     * @return the mean nanoseconds per row of the 1-NN scan over rows with
+     *         either the kernels or the plain loop, after warming up
+     */
+    private static double time(double[] coords, double[][] queries, int dim, boolean unrolled,
+                               double[] checksum) {
+        int rows = coords.length / dim;
+        long start = 0;
+        double total = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            start = System.nanoTime();
+            total = 0;
+            for (double[] q : queries) {
+                double best = Double.POSITIVE_INFINITY;
+                for (int row = 0, off = 0; row < rows; row++, off += dim) {
+                    double distSq = (unrolled ? distanceSq(coords, off, q, dim, best)
+                                     : distanceSqLoop(coords, off, q, dim, best));
+                    if (distSq < best) {
+                        best = distSq;
+                    }
+                }
+                total += best;
+            }
+        }
+        checksum[0] = total;
+        return ((double) (System.nanoTime() - start)) / ((double) rows * queries.length);
+    }
+
+    public static void main(String[] args) {
+        int rows = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+        int numQueries = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+        Random rand = new Random(0);
+
+        System.out.printf("%d rows, %d queries, 1-NN scan\n", rows, numQueries);
+        System.out.printf("%4s %12s %12s %8s\n", "dim", "loop ns/row", "kernel ns/row", "speedup");
+        for (int dim : new int[] { 2, 6, 15 }) {
+            double[] coords = new double[rows * dim];
+            for (int i = 0; i < coords.length; i++) {
+                coords[i] = rand.nextDouble();
+            }
+            double[][] queries = new double[numQueries][dim];
+            for (double[] q : queries) {
+                for (int d = 0; d < dim; d++) {
+                    q[d] = rand.nextDouble();
+                }
+            }
+
+            double[] loopSum = new double[1], kernelSum = new double[1];
+            double loop = time(coords, queries, dim, false, loopSum);
+            double kernel = time(coords, queries, dim, true, kernelSum);
+            if (loopSum[0] != kernelSum[0]) {
+                System.err.println("ERR: The " + dim + " dimensional kernel found other neighbours");
+            }
+            System.out.printf("%4d %12.2f %12.2f %8.2f\n", dim, loop, kernel, loop / kernel);
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package abolt.classify;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * @author Aaron 
@@ -24,6 +24,24 @@ public abstract class FEUtil {
 		}
 	}
 	
+	public static double[] toArray(List<Double> features){
+		double[] values = new double[features.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = features.get(i);
+		}
+		return values;
+	}
+
+	public static ArrayList<Double> toList(double[] features){
+		ArrayList<Double> list = new ArrayList<Double>(features.length);
+		addArray(list, features);
+		return list;
+	}
+
+	public static String featuresToString(double[] features){
+		return (features == null ? "[]" : featuresToString(toList(features)));
+	}
+
 	public static String featuresToString(ArrayList<Double> features){
 		if(features == null || features.size() == 0){
 			return "[]";
@@ -36,35 +54,44 @@ public abstract class FEUtil {
 		return s;
 	}
 	
+	/**
+	 * @return the example as a "[f1 f2 ... fn ] {label}" line of a .dat
+	 *         file, written without exponents
+	 */
+	public static String toDataLine(double[] features, String label){
+		StringBuilder sb = new StringBuilder("[");
+		for (double d : features) {
+			sb.append(BigDecimal.valueOf(d).toPlainString()).append(' ');
+		}
+		sb.append("] {").append(label).append('}');
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the label of a .dat line, see DataFileParser
+	 */
 	public static String getLabelFromString(String featureString){
-		String reg = "\\{.*\\}";
-        Pattern p = Pattern.compile(reg);
-
-        Matcher m = p.matcher(featureString);
-        String label;
-        if (m.find()) {
-            label = m.group();
-            label = label.replace("{", "");
-            label = label.replace("}", "");
-            return label;
-        } else {
-            System.out.println("ERROR: no label found on training data");
-            return "unknown";
-        }
+		DataFileParser parser = DataFileParser.forLine(featureString);
+		if (parser.next() && parser.getLabel() != null) {
+			return parser.getLabel();
+		} else {
+			System.out.println("ERROR: no label found on training data");
+			return "unknown";
+		}
 	}
 	
+	/**
+	 * @return the features of a .dat line, see DataFileParser
+	 */
 	public static ArrayList<Double> getFeaturesFromString(String featureString){
-		String reg = "[0-9]{1,}+(\\.[0-9]{1,})";
-        Pattern p = Pattern.compile(reg);
-
-        Matcher m = p.matcher(featureString);
-        int i = 0;
-
-        ArrayList<Double> features = new ArrayList<Double>();
-        while (m.find()) {
-        	features.add(Double.valueOf(m.group()).doubleValue());
-            i++;
-        }
-        return features;
+		DataFileParser parser = DataFileParser.forLine(featureString);
+		ArrayList<Double> features = new ArrayList<Double>();
+		if (parser.next()) {
+			double[] values = parser.getValues();
+			for (int i = 0; i < parser.getNumValues(); i++) {
+				features.add(values[i]);
+			}
+		}
+		return features;
 	}
 }
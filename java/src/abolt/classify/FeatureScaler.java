@@ -0,0 +1,300 @@
+package abolt.classify;
+
+/**
+ * @purpose Maps raw feature vectors into a better conditioned space before
+ *          they are stored or compared, so that no feature dominates the
+ *          distance only because of its units. Each feature is first
+ *          normalised on its own:
+ *            ZSCORE: (x - mean) / standard deviation
+ *            MINMAX: (x - min) / (max - min)
+ *          and the result can then be PCA whitened: projected onto the
+ *          principal axes of the training examples and divided by the
+ *          spread along each, optionally keeping only the first components.
+ *
+ *          A scaler is created with its settings and is immutable; fit()
+ *          returns a new scaler with the statistics of a training set.
+ *          An unfitted scaler leaves vectors unchanged.
+ */
+public class FeatureScaler {
+    public enum Type {
+        NONE, ZSCORE, MINMAX
+    }
+
+    // Axes whose variance is below this fraction of the largest are dropped
+    private static final double MIN_RELATIVE_VARIANCE = 1e-12;
+
+    private final Type type;
+    private final boolean whiten;
+    private final int components;
+
+    // Fitted statistics, (x[d] - offsets[d]) * scales[d] normalises x
+    private boolean fitted = false;
+    private int inDim, outDim;
+    private double[] offsets, scales;
+    // Whitening: mean of the normalised examples and [outDim][inDim] axes,
+    // each divided by the spread along it
+    private double[] means = null;
+    private double[] axes = null;
+
+    /**
+     * @param whiten whether to PCA whiten after normalising
+     * @param components number of principal axes to keep when whitening, 0
+     *                   for all of them
+     */
+    public FeatureScaler(Type type, boolean whiten, int components) {
+        this.type = type;
+        this.whiten = whiten;
+        this.components = components;
+    }
+
+    /**
+     * @return a scaler for the settings read from a config ("none", "zscore"
+     *         or "minmax"), or null if it would do nothing
+     */
+    public static FeatureScaler create(String type, boolean whiten, int components) {
+        Type t;
+        try {
+            t = Type.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("WRN: Unknown scaling " + type + ", using none");
+            t = Type.NONE;
+        }
+        if (t == Type.NONE && !whiten) {
+            return null;
+        }
+        return new FeatureScaler(t, whiten, components);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isWhitening() {
+        return whiten;
+    }
+
+    /**
+     * @return an unfitted scaler with the same normalisation but no whitening
+     */
+    public FeatureScaler withoutWhitening() {
+        return new FeatureScaler(type, false, 0);
+    }
+
+    public boolean isFitted() {
+        return fitted;
+    }
+
+    /**
+     * @return the length of the transformed vectors, or inDim if unfitted
+     */
+    public int getOutputDim(int inDim) {
+        return (fitted ? outDim : inDim);
+    }
+
+    /**
+     * @return a scaler with these settings fitted to the rows of examples
+     */
+    public FeatureScaler fit(ITrainingData examples) {
+        FeatureScaler fit = new FeatureScaler(type, whiten, components);
+        int n = examples.size();
+        int dim = examples.getDim();
+        fit.inDim = dim;
+        fit.outDim = dim;
+        fit.offsets = new double[dim];
+        fit.scales = new double[dim];
+        fit.fitted = true;
+
+        for (int d = 0; d < dim; d++) {
+            double offset = 0, spread = 0;
+            if (n > 0 && type == Type.ZSCORE) {
+                double mean = 0, m2 = 0;
+                for (int row = 0; row < n; row++) {
+                    double x = examples.get(row, d);
+                    double delta = x - mean;
+                    mean += delta / (row + 1);
+                    m2 += delta * (x - mean);
+                }
+                offset = mean;
+                spread = Math.sqrt(m2 / n);
+            } else if (n > 0 && type == Type.MINMAX) {
+                double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+                for (int row = 0; row < n; row++) {
+                    double x = examples.get(row, d);
+                    min = (x < min ? x : min);
+                    max = (x > max ? x : max);
+                }
+                offset = min;
+                spread = max - min;
+            }
+            fit.offsets[d] = offset;
+            // Constant features are only shifted
+            fit.scales[d] = (spread > 0 ? 1 / spread : 1);
+        }
+
+        if (whiten && n > 1) {
+            fit.fitWhitening(examples);
+        }
+        return fit;
+    }
+
+    private void fitWhitening(ITrainingData examples) {
+        int n = examples.size();
+        int dim = inDim;
+        double[] z = new double[dim];
+
+        means = new double[dim];
+        for (int row = 0; row < n; row++) {
+            normalise(examples, row, z);
+            for (int d = 0; d < dim; d++) {
+                means[d] += z[d];
+            }
+        }
+        for (int d = 0; d < dim; d++) {
+            means[d] /= n;
+        }
+
+        double[][] cov = new double[dim][dim];
+        for (int row = 0; row < n; row++) {
+            normalise(examples, row, z);
+            for (int i = 0; i < dim; i++) {
+                double zi = z[i] - means[i];
+                for (int j = i; j < dim; j++) {
+                    cov[i][j] += zi * (z[j] - means[j]);
+                }
+            }
+        }
+        for (int i = 0; i < dim; i++) {
+            for (int j = i; j < dim; j++) {
+                cov[i][j] /= n;
+                cov[j][i] = cov[i][j];
+            }
+        }
+
+        double[][] vectors = new double[dim][dim];
+        double[] values = eigen(cov, vectors);
+
+        // Principal axes in order of decreasing variance
+        int[] order = new int[dim];
+        for (int i = 0; i < dim; i++) {
+            order[i] = i;
+        }
+        for (int i = 1; i < dim; i++) {
+            for (int j = i; j > 0 && values[order[j]] > values[order[j - 1]]; j--) {
+                int tmp = order[j];
+                order[j] = order[j - 1];
+                order[j - 1] = tmp;
+            }
+        }
+        int keep = (components > 0 ? Math.min(components, dim) : dim);
+        double largest = values[order[0]];
+        while (keep > 1 && !(values[order[keep - 1]] > largest * MIN_RELATIVE_VARIANCE)) {
+            keep--;
+        }
+        if (!(largest > 0)) {
+            // Every example is the same, there are no axes to whiten along
+            means = null;
+            return;
+        }
+
+        outDim = keep;
+        axes = new double[keep * dim];
+        for (int k = 0; k < keep; k++) {
+            double s = 1 / Math.sqrt(values[order[k]]);
+            for (int d = 0; d < dim; d++) {
+                axes[k * dim + d] = vectors[d][order[k]] * s;
+            }
+        }
+    }
+
+    private void normalise(ITrainingData examples, int row, double[] z) {
+        for (int d = 0; d < inDim; d++) {
+            z[d] = (examples.get(row, d) - offsets[d]) * scales[d];
+        }
+    }
+
+    /**
+     * Jacobi eigenvalue iteration for a small symmetric matrix
+     * @param a the matrix, destroyed
+     * @param vectors filled with the eigenvectors as columns
+     * @return the eigenvalues
+     */
+    private static double[] eigen(double[][] a, double[][] vectors) {
+        int n = a.length;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                vectors[i][j] = (i == j ? 1 : 0);
+            }
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    off += a[p][q] * a[p][q];
+                }
+            }
+            if (off < 1e-30) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    if (a[p][q] == 0) {
+                        continue;
+                    }
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double vkp = vectors[k][p], vkq = vectors[k][q];
+                        vectors[k][p] = c * vkp - s * vkq;
+                        vectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = a[i][i];
+        }
+        return values;
+    }
+
+    /**
+     * @return x in the scaled space, a new array; x itself if unfitted
+     */
+    public double[] transform(double[] x) {
+        if (!fitted) {
+            return x;
+        }
+        double[] z = new double[inDim];
+        for (int d = 0; d < inDim; d++) {
+            z[d] = (x[d] - offsets[d]) * scales[d];
+        }
+        if (axes == null) {
+            return z;
+        }
+        double[] y = new double[outDim];
+        for (int k = 0; k < outDim; k++) {
+            int off = k * inDim;
+            double sum = 0;
+            for (int d = 0; d < inDim; d++) {
+                sum += axes[off + d] * (z[d] - means[d]);
+            }
+            y[k] = sum;
+        }
+        return y;
+    }
+}
@@ -54,13 +54,19 @@ public class Features {
 
 	public static ArrayList<Double> getFeatures(FeatureCategory cat,
 			ArrayList<double[]> points) {
+		double[] features = getFeatureArray(cat, points);
+		return (features == null ? null : FEUtil.toList(features));
+	}
+
+	public static double[] getFeatureArray(FeatureCategory cat,
+			ArrayList<double[]> points) {
 		switch (cat) {
 		case COLOR:
-			return ColorFeatureExtractor.getFeatures(points);
+			return ColorFeatureExtractor.getFeatureArray(points);
 		case SIZE:
-			return SizeFeatureExtractor.getFeatures(points);
+			return SizeFeatureExtractor.getFeatureArray(points);
 		case SHAPE:
-			return ShapeFeatureExtractor.getFeatures(points);
+			return ShapeFeatureExtractor.getFeatureArray(points);
 		}
 		return null;
 	}
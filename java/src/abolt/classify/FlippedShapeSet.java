@@ -0,0 +1,223 @@
+package abolt.classify;
+
+import java.util.List;
+
+/**
+ * @purpose The training set of ShapeKNN. A shape feature vector is the
+ *          aspect ratio followed by a top (pt1) and a bottom (pt2) profile,
+ *          and a shape should match its flipped versions too. Each shape is
+ *          stored once, but the set presents it as four rows: row 4i+f is
+ *          shape i under flip f
+ *            0: [first, pt1, pt2]            as is
+ *            1: [first, pt2, pt1]            vertically flipped
+ *            2: [first, rev(pt1), rev(pt2)]  horizontally flipped
+ *            3: [first, rev(pt2), rev(pt1)]  both
+ *          The flipped rows are never materialised; they are read from the
+ *          stored shape through a permutation table, summing the distance
+ *          terms in the same order as for a materialised row.
+ */
+public class FlippedShapeSet implements ITrainingData {
+    public static final int NUM_FLIPS = 4;
+
+    // The shapes as they were added
+    private TrainingSet shapes;
+    // flips[f][j] is the feature of the stored shape found at j in flip f
+    private final int[][] flips;
+
+    public FlippedShapeSet(int dim) {
+        this(new TrainingSet(dim));
+    }
+
+    private FlippedShapeSet(TrainingSet shapes) {
+        this.shapes = shapes;
+        this.flips = createFlips(shapes.getDim());
+    }
+
+    private static int[][] createFlips(int dim) {
+        int half = (dim - 1) / 2;
+        int[] pt1 = new int[half];
+        int[] pt2 = new int[dim - 1 - half];
+        for (int i = 0; i < pt1.length; i++) {
+            pt1[i] = 1 + i;
+        }
+        for (int i = 0; i < pt2.length; i++) {
+            pt2[i] = 1 + half + i;
+        }
+
+        int[][] flips = new int[NUM_FLIPS][];
+        flips[0] = concat(pt1, pt2, false);
+        flips[1] = concat(pt2, pt1, false);
+        flips[2] = concat(pt1, pt2, true);
+        flips[3] = concat(pt2, pt1, true);
+        return flips;
+    }
+
+    /**
+     * @return [0, a, b], with a and b reversed if reverse is set
+     */
+    private static int[] concat(int[] a, int[] b, boolean reverse) {
+        int[] perm = new int[1 + a.length + b.length];
+        for (int i = 0; i < a.length; i++) {
+            perm[1 + i] = (reverse ? a[a.length - 1 - i] : a[i]);
+        }
+        for (int i = 0; i < b.length; i++) {
+            perm[1 + a.length + i] = (reverse ? b[b.length - 1 - i] : b[i]);
+        }
+        return perm;
+    }
+
+    /**
+     * @return the shapes as they were added, one row each
+     */
+    public TrainingSet getShapes() {
+        return shapes;
+    }
+
+    @Override
+    public int getDim() {
+        return shapes.getDim();
+    }
+
+    @Override
+    public int size() {
+        return shapes.size() * NUM_FLIPS;
+    }
+
+    @Override
+    public void clear() {
+        shapes.clear();
+    }
+
+    @Override
+    public FlippedShapeSet copy() {
+        return new FlippedShapeSet(shapes.copy());
+    }
+
+    @Override
+    public int getLabelId(String label) {
+        return shapes.getLabelId(label);
+    }
+
+    @Override
+    public String getLabelName(int labelId) {
+        return shapes.getLabelName(labelId);
+    }
+
+    @Override
+    public int numLabels() {
+        return shapes.numLabels();
+    }
+
+    /**
+     * Adds a shape, which appears as the four rows starting at the returned
+     * one
+     */
+    @Override
+    public int add(double[] pt, String label) {
+        return shapes.add(pt, label) * NUM_FLIPS;
+    }
+
+    @Override
+    public int add(List<Double> pt, String label) {
+        return shapes.add(pt, label) * NUM_FLIPS;
+    }
+
+    @Override
+    public int getLabelId(int row) {
+        return shapes.getLabelId(row / NUM_FLIPS);
+    }
+
+    @Override
+    public String getLabel(int row) {
+        return shapes.getLabel(row / NUM_FLIPS);
+    }
+
+    @Override
+    public double get(int row, int d) {
+        return shapes.get(row / NUM_FLIPS, flips[row % NUM_FLIPS][d]);
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        int dim = getDim();
+        int[] perm = flips[row % NUM_FLIPS];
+        double[] coords = shapes.getCoords();
+        int off = (row / NUM_FLIPS) * dim;
+        double[] pt = new double[dim];
+        for (int j = 0; j < dim; j++) {
+            pt[j] = coords[off + perm[j]];
+        }
+        return pt;
+    }
+
+    @Override
+    public double distanceSq(int row, double[] pt) {
+        return distanceSq(row, pt, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public double distanceSq(int row, double[] pt, double bound) {
+        int dim = getDim();
+        int[] perm = flips[row % NUM_FLIPS];
+        double[] coords = shapes.getCoords();
+        int off = (row / NUM_FLIPS) * dim;
+        double sum = 0;
+        for (int j = 0; j < dim; j++) {
+            double d = coords[off + perm[j]] - pt[j];
+            sum += d * d;
+            if (sum >= bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public double distance(int row, double[] pt) {
+        return Math.sqrt(distanceSq(row, pt));
+    }
+
+    /**
+     * Offers the rows in [start, end) to nearest, like a linear scan with
+     * distanceSq. Every flip keeps the first feature in place, so its term
+     * starts the sums of all four rows of a shape; when it alone reaches the
+     * bound the whole shape is skipped.
+     */
+    @Override
+    public void scan(double[] pt, NeighborHeap nearest, int start, int end) {
+        int dim = getDim();
+        double[] coords = shapes.getCoords();
+        int row = start;
+        while (row < end) {
+            int shape = row / NUM_FLIPS;
+            int off = shape * dim;
+            int last = Math.min(end, (shape + 1) * NUM_FLIPS);
+            if (!nearest.accepts(row)) {
+                // All the flips of a shape have its label, and are
+                // excluded together
+                row = last;
+                continue;
+            }
+
+            double first = coords[off] - pt[0];
+            first *= first;
+            for (; row < last; row++) {
+                double bound = nearest.bound();
+                if (first >= bound) {
+                    // The bound only shrinks, so neither do the other flips
+                    row = last;
+                    break;
+                }
+                int[] perm = flips[row % NUM_FLIPS];
+                double sum = first;
+                for (int j = 1; j < dim && sum < bound; j++) {
+                    double d = coords[off + perm[j]] - pt[j];
+                    sum += d * d;
+                }
+                if (sum < bound) {
+                    nearest.offer(row, sum);
+                }
+            }
+        }
+    }
+}
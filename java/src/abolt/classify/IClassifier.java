@@ -1,22 +1,40 @@
 package abolt.classify;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import abolt.objects.BoltObject;
 
+/**
+ * Feature vectors are passed as double[]; the ArrayList<Double> versions
+ * are adapters for older callers that box every feature
+ */
 public interface IClassifier {
     /**
      * @param object
      * Adds the given training example to the classifier 
      */
+    void add(double[] features, String label);
+    
     void add(ArrayList<Double> features, String label);
     
 	/**
 	 * @param object
 	 * @return the label for the object, or "unknown" if not found
 	 */
+	ConfidenceLabel classify(double[] features);
+	
 	ConfidenceLabel classify(ArrayList<Double> features);
 	
+	/**
+	 * Classifies several feature vectors at once, e.g. every object in a
+	 * frame, which can share work between the queries
+	 * @return the label of each feature vector, in the same order
+	 */
+	ConfidenceLabel[] classifyBatch(double[][] features);
+	
+	List<ConfidenceLabel> classifyBatch(List<ArrayList<Double>> features);
+	
 	
 	/**
 	 * Clears all data in the classifier
@@ -26,6 +44,15 @@ public interface IClassifier {
 	
 	/**
 	 * Reloads all the data in the classifier
+	 * @return false if the data could not be read, the classifier then
+	 *         holds an unknown part of it and should be thrown away
+	 */
+	boolean loadData();
+
+
+	/**
+	 * @return an independent copy of the classifier, changing either one
+	 *         does not affect the other
 	 */
-	void loadData();
+	IClassifier copy();
 }
@@ -0,0 +1,31 @@
+package abolt.classify;
+
+/**
+ * @purpose A spatial index over the rows of an ITrainingData that answers
+ *          nearest-neighbour queries faster than a linear scan. An index
+ *          covers the first size() rows of the set it was built on; rows
+ *          appended afterwards are scanned linearly by the caller until the
+ *          index is rebuilt.
+ */
+public interface INeighborIndex {
+    /**
+     * Rebuilds the index over every row currently in the training set
+     */
+    void build(ITrainingData data);
+
+    /**
+     * @return the number of rows covered by the index
+     */
+    int size();
+
+    /**
+     * Offers every indexed row that may be closer to the query than
+     * nearest.bound() to the heap, pruning the rest
+     */
+    void search(ITrainingData data, double[] query, NeighborHeap nearest);
+
+    /**
+     * @return a new, empty index of the same kind
+     */
+    INeighborIndex create();
+}
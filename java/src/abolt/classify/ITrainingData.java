@@ -0,0 +1,76 @@
+package abolt.classify;
+
+import java.util.List;
+
+/**
+ * @purpose The rows of training examples a KNN searches, and what its
+ *          indexes need from them. TrainingSet stores every row; other
+ *          implementations may present rows that are derived from stored
+ *          ones (see FlippedShapeSet), so callers go through these methods
+ *          rather than a backing array.
+ */
+public interface ITrainingData {
+    int getDim();
+
+    /**
+     * @return the number of rows
+     */
+    int size();
+
+    /**
+     * Removes every row and every label
+     */
+    void clear();
+
+    /**
+     * @return an independent copy
+     */
+    ITrainingData copy();
+
+    /**
+     * Appends an example
+     * @return the first row the example appears in
+     */
+    int add(double[] pt, String label);
+
+    int add(List<Double> pt, String label);
+
+    /**
+     * @return the id of the given label, or -1 if no example has it
+     */
+    int getLabelId(String label);
+
+    String getLabelName(int labelId);
+
+    int numLabels();
+
+    int getLabelId(int row);
+
+    String getLabel(int row);
+
+    double get(int row, int d);
+
+    /**
+     * @return a copy of the coordinates of the given row
+     */
+    double[] getRow(int row);
+
+    /**
+     * @return the squared euclidean distance between the given row and pt
+     */
+    double distanceSq(int row, double[] pt);
+
+    /**
+     * Same as distanceSq, but may stop summing once the partial sum reaches
+     * bound, in which case some value >= bound is returned
+     */
+    double distanceSq(int row, double[] pt, double bound);
+
+    double distance(int row, double[] pt);
+
+    /**
+     * Offers the rows in [start, end) that nearest accepts and that are
+     * closer than its bound to it, like a linear scan with distanceSq
+     */
+    void scan(double[] pt, NeighborHeap nearest, int start, int end);
+}
@@ -0,0 +1,145 @@
+package abolt.classify;
+
+/**
+ * @purpose A KD-tree over the rows of an ITrainingData. Each node splits its
+ *          rows at the median of the dimension with the largest spread, and
+ *          searches skip any subtree whose splitting plane is farther away
+ *          than the current k-th best neighbour (or maxDistance). Works well
+ *          for the low dimensional size and color spaces.
+ */
+public class KDTree implements INeighborIndex {
+    private static final int LEAF_SIZE = 8;
+
+    private int size = 0;
+    // Rows reordered so that every node owns the range [start, end)
+    private int[] perm = new int[0];
+
+    private int numNodes;
+    private int[] nodeStart, nodeEnd, nodeLeft, nodeRight, nodeDim;
+    private double[] nodeSplit;
+
+    @Override
+    public void build(ITrainingData data) {
+        size = data.size();
+        perm = new int[size];
+        for (int i = 0; i < size; i++) {
+            perm[i] = i;
+        }
+
+        // Leaves hold at least LEAF_SIZE/2 rows, so there are at most size/2 nodes
+        int maxNodes = size / 2 + 2;
+        nodeStart = new int[maxNodes];
+        nodeEnd = new int[maxNodes];
+        nodeLeft = new int[maxNodes];
+        nodeRight = new int[maxNodes];
+        nodeDim = new int[maxNodes];
+        nodeSplit = new double[maxNodes];
+        numNodes = 0;
+        if (size > 0) {
+            buildNode(data, 0, size);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int buildNode(ITrainingData data, int start, int end) {
+        int node = numNodes++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        // Split along the dimension with the largest spread
+        int splitDim = 0;
+        double maxSpread = 0;
+        for (int d = 0; d < data.getDim(); d++) {
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = start; i < end; i++) {
+                double v = data.get(perm[i], d);
+                min = (v < min ? v : min);
+                max = (v > max ? v : max);
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                splitDim = d;
+            }
+        }
+        if (maxSpread == 0) {
+            // All the points are identical
+            return node;
+        }
+
+        int mid = (start + end) / 2;
+        select(data, splitDim, start, end, mid);
+        nodeDim[node] = splitDim;
+        nodeSplit[node] = data.get(perm[mid], splitDim);
+        nodeLeft[node] = buildNode(data, start, mid);
+        nodeRight[node] = buildNode(data, mid, end);
+        return node;
+    }
+
+    /**
+     * Quickselect: reorders perm[start, end) so that perm[k] holds the row
+     * with the k-th smallest value along d, everything before it is no
+     * larger and everything after it is no smaller
+     */
+    private void select(ITrainingData data, int d, int start, int end, int k) {
+        int lo = start, hi = end - 1;
+        while (lo < hi) {
+            double pivot = data.get(perm[(lo + hi) >>> 1], d);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (data.get(perm[i], d) < pivot) i++;
+                while (data.get(perm[j], d) > pivot) j--;
+                if (i <= j) {
+                    int tmp = perm[i];
+                    perm[i] = perm[j];
+                    perm[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void search(ITrainingData data, double[] query, NeighborHeap nearest) {
+        if (numNodes > 0) {
+            search(0, data, query, nearest);
+        }
+    }
+
+    private void search(int node, ITrainingData data, double[] query, NeighborHeap nearest) {
+        if (nodeLeft[node] < 0) {
+            for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                nearest.offer(perm[i], data.distanceSq(perm[i], query));
+            }
+            return;
+        }
+
+        double diff = query[nodeDim[node]] - nodeSplit[node];
+        int near = (diff < 0 ? nodeLeft[node] : nodeRight[node]);
+        int far = (diff < 0 ? nodeRight[node] : nodeLeft[node]);
+        search(near, data, query, nearest);
+        if (diff * diff < nearest.bound()) {
+            search(far, data, query, nearest);
+        }
+    }
+
+    @Override
+    public INeighborIndex create() {
+        return new KDTree();
+    }
+}
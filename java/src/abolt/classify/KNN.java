@@ -4,321 +4,577 @@ import java.io.Console;
 import java.lang.*;
 import java.io.*;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import abolt.classify.Features.FeatureCategory;
 import abolt.kinect.ObjectInfo;
 import abolt.objects.BoltObject;
+import abolt.util.ParallelUtil;
 
 
 /**
- * @author James Kirk
- * @purpose A point data structure used in the KNN
+ * @author James
+ * @purpose a basic K-Nearest-Neighbor implementation with testing functionality
  */
-class KNNPoint {
-    List<Double> coords;
-    String label;
-    
-    public KNNPoint(String featureString){
-    	this.coords = FEUtil.getFeaturesFromString(featureString);
-    	this.label = FEUtil.getLabelFromString(featureString);
+public class KNN implements IClassifier, Cloneable{
+    // How many rows may be appended after the index was built before it is
+    // rebuilt; until then they are scanned linearly
+    private static final int MIN_UNINDEXED = 64;
+    // classifyBatch compares every query against a block of this many rows
+    // before moving on to the next block, so the block stays in cache
+    private static final int BATCH_BLOCK_ROWS = 256;
+    // Distance computations a batch needs before it is split across cores
+    private static final int MIN_PARALLEL_WORK = 100000;
+
+    protected ITrainingData data;
+    protected String datafile;
+
+    // Optional normalisation of the features, fitted by loadData. The data
+    // holds scaled examples, every method taking a feature vector scales it
+    protected FeatureScaler scaler = null;
+
+    // Optional spatial index over data, null for a linear scan
+    protected INeighborIndex index = null;
+    // Shared by every copy that uses index; set once the index has been
+    // shared, after which none of them may rebuild it in place. Published
+    // snapshots are only ever touched through this flag.
+    private AtomicBoolean indexShared = new AtomicBoolean(false);
+    private boolean loading = false;
+    private boolean parallelBatch = false;
+
+    protected int Km;
+    // Length of the (unscaled) feature vectors
+    protected int dim;
+
+    protected double maxDistance;
+
+    public KNN(int Km, int dim, String datafile, double maxDistance) {
+        this.Km = Km;
+        this.datafile = datafile;
+        this.dim = dim;
+        this.maxDistance = maxDistance;
+        data = createData(dim);
     }
-    
-    public KNNPoint(double[] coords, String label) {
-    	this.label = label;
-		this.coords = new ArrayList<Double>(coords.length);
-		for (int i = 0; i < coords.length; i++)
-		    this.coords.add(coords[i]);
-	}
 
-    public KNNPoint(List<Double> coords, String label) {
-    	this.label = label;
-        this.coords = new ArrayList<Double>(coords.size());
-        for (int i = 0; i < coords.size(); i++)
-            this.coords.add(coords.get(i));
+    /**
+     * @return an empty training set for examples of the given length
+     */
+    protected ITrainingData createData(int dim) {
+        return new TrainingSet(dim);
     }
 
-    public KNNPoint(KNNPoint p) {
-        this(p.getCoords(), p.getLabel());
+    public ITrainingData getData() {
+        return data;
     }
-    
-    public String getLabel(){
-    	return label;
+
+    /**
+     * Normalises the features with scaler from now on. It is fitted to the
+     * examples of the data file by loadData, which then replaces the stored
+     * examples with the scaled ones; maxDistance applies to scaled features.
+     * @param scaler the normalisation to use, or null for raw features
+     */
+    public void setScaler(FeatureScaler scaler) {
+        this.scaler = scaler;
     }
 
-    public List<Double> getCoords() {
-        return coords;
+    public FeatureScaler getScaler() {
+        return scaler;
     }
 
-    public double distance(KNNPoint p) {
-        List<Double> points2 = p.getCoords();
-        double sum = 0;
-        for (int i = 0; i < coords.size() && i < points2.size(); i++)
-            sum += Math.pow(coords.get(i) - points2.get(i), 2);
+    /**
+     * @return features as they are stored in data
+     */
+    protected double[] scale(double[] features) {
+        return (scaler == null ? features : scaler.transform(features));
+    }
 
-        return Math.sqrt(sum);
+    /**
+     * Selects the spatial index used to answer neighbour queries
+     * @param index the index to use, or null to scan every example
+     */
+    public void setIndex(INeighborIndex index) {
+        this.index = index;
+        indexShared = new AtomicBoolean(false);
+        if (index != null) {
+            index.build(data);
+        }
     }
-}
 
-/**
- * @author James
- * @purpose a basic K-Nearest-Neighbor implementation with testing functionality
- */
-public class KNN implements IClassifier{
-    protected List<KNNPoint> data;
-    protected String datafile;
+    public INeighborIndex getIndex() {
+        return index;
+    }
 
-    protected int Km;
-    protected int dim;
+    /**
+     * @param parallel whether classifyBatch may split large batches across
+     *                 cores
+     */
+    public void setParallelBatch(boolean parallel) {
+        this.parallelBatch = parallel;
+    }
 
-    protected double maxDistance;
+    /**
+     * Rebuilds the index once enough rows were appended since the last build
+     */
+    private void updateIndex() {
+        if (index == null || loading) {
+            return;
+        }
+        int unindexed = data.size() - index.size();
+        if (unindexed > Math.max(MIN_UNINDEXED, index.size() / 8)) {
+            rebuildIndex();
+        }
+    }
 
-    public KNN(int Km, int dim, String datafile, double maxDistance) {
-        this.Km = Km;
-        this.datafile = datafile;
-        this.dim = dim;
-        this.maxDistance = maxDistance;
-        data = new ArrayList<KNNPoint>();
+    private void rebuildIndex() {
+        if (index == null) {
+            return;
+        }
+        if (indexShared.get()) {
+            index = index.create();
+            indexShared = new AtomicBoolean(false);
+        }
+        index.build(data);
+    }
+
+    /**
+     * @return an independent copy of this classifier. Rows are only ever
+     *         appended, so the copy shares the index (which covers a prefix
+     *         of rows common to both) until either one has to rebuild it.
+     */
+    @Override
+    public KNN copy() {
+        KNN copy;
+        try {
+            copy = (KNN) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex);
+        }
+        copy.data = data.copy();
+        if (index != null) {
+            indexShared.set(true);
+        }
+        return copy;
     }
     
     @Override
     public void add(ArrayList<Double> features, String label){
-		KNNPoint pt = new KNNPoint(features, label);
-		add(pt);
+        add(FEUtil.toArray(features), label);
     }
 
-    public void add(KNNPoint pt) {
-    	if(pt.getCoords().size() != dim){
+    @Override
+    public void add(double[] coords, String label) {
+    	if(coords.length != dim){
     		return;
     	}
-    	if(pt.getLabel() == null){
+    	if(label == null){
     		System.out.println("NULL");
     		return;
     	}
-        data.add(pt);
+        addRows(scale(coords), label);
+        updateIndex();
+    }
+
+    /**
+     * Stores a validated training example in data
+     */
+    protected void addRows(double[] coords, String label) {
+        data.add(coords, label);
     }
     
 	@Override
 	public ConfidenceLabel classify(ArrayList<Double> features) {
-		KNNPoint test = new KNNPoint(features, null);
-		if(test.getCoords().size() != dim){
+		return classify(FEUtil.toArray(features));
+	}
+
+	@Override
+	public ConfidenceLabel classify(double[] features) {
+		if(features.length != dim){
 			// wrong number of dimensions
 			return new ConfidenceLabel(0.0, "unknown");
 		}
 
-        List<ConfidenceLabel> cl = getMostConfidentLabels(this.Km, test);
-        if (cl == null || cl.size() == 0) {
+        int[] nearest = getKNearestNeighbors(this.Km, features);
+        if (nearest.length == 0) {
             return new ConfidenceLabel(0.0, "unknown");
         }
-        ConfidenceLabel c = cl.get(0);
-        return c;
+        return firstVote(nearest, nearest.length);
+	}
+
+	/**
+	 * Classifies features using only the training examples whose label id
+	 * is set in allowedLabels, as if the others had never been added
+	 */
+	public ConfidenceLabel classify(double[] features, boolean[] allowedLabels) {
+		if(features.length != dim){
+			return new ConfidenceLabel(0.0, "unknown");
+		}
+
+		int[] nearest = neighbors(this.Km, scale(features), allowedLabels);
+		if (nearest.length == 0) {
+			return new ConfidenceLabel(0.0, "unknown");
+		}
+		return firstVote(nearest, nearest.length);
+	}
+
+	/**
+	 * Classifies all of the queries in one pass over the training data,
+	 * giving the same labels as calling classify on each of them
+	 */
+	@Override
+	public List<ConfidenceLabel> classifyBatch(List<ArrayList<Double>> features) {
+		double[][] queries = new double[features.size()][];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = FEUtil.toArray(features.get(i));
+		}
+		return Arrays.asList(classifyBatch(queries));
+	}
+
+	@Override
+	public ConfidenceLabel[] classifyBatch(double[][] features) {
+		return classifyBatch(features, null);
+	}
+
+	/**
+	 * Same as classify(features[q], allowedLabels[q]) for every query, in
+	 * one pass over the training data
+	 * @param allowedLabels the label filter of each query (null entries
+	 *                      allow every label), or null for no filters
+	 */
+	public ConfidenceLabel[] classifyBatch(double[][] features, final boolean[][] allowedLabels) {
+		// Queries of the wrong length are left null and come back unknown
+		final double[][] queries = new double[features.length][];
+		for (int q = 0; q < features.length; q++) {
+			queries[q] = (features[q].length == dim ? scale(features[q]) : null);
+		}
+		final ConfidenceLabel[] labels = new ConfidenceLabel[queries.length];
+		long work = (long) queries.length * (data.size() - (index != null ? index.size() : 0));
+		if (!parallelBatch || queries.length < 2 || work < MIN_PARALLEL_WORK) {
+			classifyRange(queries, allowedLabels, 0, queries.length, labels);
+			return labels;
+		}
+
+		int[] bounds = ParallelUtil.split(queries.length, 1);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			final int start = bounds[i];
+			final int end = bounds[i + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					classifyRange(queries, allowedLabels, start, end, labels);
+					return null;
+				}
+			});
+		}
+		ParallelUtil.invokeAll(tasks);
+		return labels;
 	}
 
+	private void classifyRange(double[][] queries, boolean[][] allowedLabels, int start, int end,
+	                           ConfidenceLabel[] labels) {
+		NeighborHeap[] heaps = new NeighborHeap[end - start];
+		for (int q = start; q < end; q++) {
+			if (queries[q] != null) {
+				heaps[q - start] = new NeighborHeap(this.Km, maxDistance);
+				if (allowedLabels != null) {
+					heaps[q - start].setLabelFilter(data, allowedLabels[q]);
+				}
+				if (index != null) {
+					index.search(data, queries[q], heaps[q - start]);
+				}
+			}
+		}
+
+		int n = data.size();
+		for (int block = (index != null ? index.size() : 0); block < n; block += BATCH_BLOCK_ROWS) {
+			int blockEnd = Math.min(n, block + BATCH_BLOCK_ROWS);
+			for (int q = start; q < end; q++) {
+				if (heaps[q - start] != null) {
+					scanRows(queries[q], heaps[q - start], block, blockEnd);
+				}
+			}
+		}
+
+		for (int q = start; q < end; q++) {
+			NeighborHeap nearest = heaps[q - start];
+			int[] rows = null;
+			if (nearest != null) {
+				rows = (index != null ? nearest.sortedRows() : nearest.slotRows());
+			}
+			if (rows == null || rows.length == 0) {
+				labels[q] = new ConfidenceLabel(0.0, "unknown");
+			} else {
+				labels[q] = firstVote(rows, rows.length);
+			}
+		}
+	}
+
+
+    /**
+     * @param scaled a query as stored in data, see scale()
+     * @return whether a training example with the given label id is within
+     *         maxDistance of the query, so that classify could give that
+     *         label rather than "unknown"
+     */
+    boolean hasNeighbor(double[] scaled, int labelId) {
+        boolean[] allowed = new boolean[data.numLabels()];
+        allowed[labelId] = true;
+        return search(1, scaled, maxDistance, allowed).size() > 0;
+    }
+
+    /**
+     * @return the row of the closest training example, or -1 if none is
+     *         within maxDistance
+     */
+    public int getNearestNeighbor(double[] queryPt) {
+    	if(queryPt.length != dim){
+    		return -1;
+    	}
+        int[] nearest = getKNearestNeighbors(1, queryPt);
+        return (nearest.length == 0 ? -1 : nearest[0]);
+    }
 
-    public KNNPoint getNearestNeighbor(KNNPoint queryPt) {
-    	if(queryPt.getCoords().size() != dim){
+    /**
+     * @return the rows of the (at most) k closest training examples within
+     *         maxDistance of p. Without an index they come back in the order
+     *         the replace-the-farthest scan leaves them in (see NeighborHeap),
+     *         with an index they are sorted by distance.
+     */
+    public int[] getKNearestNeighbors(int k, double[] p) {
+    	if(p.length != dim){
     		return null;
     	}
-        double min = Double.MAX_VALUE;
-        KNNPoint nearestPt = null;
-
-        for (KNNPoint pt : data) {
-            double dist = queryPt.distance(pt);
-            if (dist < min && dist < maxDistance) {
-                min = dist;
-                nearestPt = pt;
-            }
-        }
+        return neighbors(k, scale(p), null);
+    }
 
-        return nearestPt;
+    /**
+     * Same as getKNearestNeighbors for a point p that is already scaled,
+     * like the rows of data
+     */
+    private int[] neighbors(int k, double[] p, boolean[] allowedLabels) {
+        NeighborHeap nearest = search(k, p, maxDistance, allowedLabels);
+        return (index != null ? nearest.sortedRows() : nearest.slotRows());
     }
 
-    public List<KNNPoint> getKNearestNeighbors(int k, KNNPoint p) {
-    	if(p.getCoords().size() != dim){
+    /**
+     * @param p a point in the space of the stored examples, e.g. a row of
+     *          getData(); it is not scaled
+     * @return the rows of the (at most) k closest training examples strictly
+     *         within maxDist of p, sorted by increasing distance
+     */
+    public int[] getSortedNeighbors(int k, double[] p, double maxDist) {
+    	if(p.length != data.getDim()){
     		return null;
     	}
-        List<KNNPoint> nearest = new ArrayList<KNNPoint>();
-
-        for (KNNPoint ts : data) {
-            double dist = ts.distance(p);
-            if (nearest.size() < k) {
-                if(dist<maxDistance)
-                    nearest.add(ts);
-                continue;
-            }
+        return search(k, p, maxDist, null).sortedRows();
+    }
 
-            int replace = -1;
+    /**
+     * Same as getSortedNeighbors(k, getData().getRow(firstRow), maxDist),
+     * as if the numRows rows from firstRow on had not been added, e.g. to
+     * leave an example out (see getRowsPerExample)
+     */
+    public int[] getSortedNeighborsExcluding(int k, int firstRow, int numRows, double maxDist) {
+        NeighborHeap nearest = new NeighborHeap(k, maxDist);
+        nearest.setExcludedRows(firstRow, firstRow + numRows);
+        search(nearest, data.getRow(firstRow));
+        return nearest.sortedRows();
+    }
 
-            // find the farthest point that is father than ts
-            // if there is such a point and if so replace
-            for (int i = 0; i < nearest.size(); i++) {
-                KNNPoint cur = nearest.get(i);
+    /**
+     * @param allowedLabels label ids whose rows may be returned, or null
+     */
+    private NeighborHeap search(int k, double[] p, double maxDist, boolean[] allowedLabels) {
+        NeighborHeap nearest = new NeighborHeap(k, maxDist);
+        nearest.setLabelFilter(data, allowedLabels);
+        search(nearest, p);
+        return nearest;
+    }
 
-                if (dist < cur.distance(p) && dist < maxDistance) {
-                    replace = i;
-                    dist = cur.distance(p);
-                }
-            }
-            if (replace >= 0)
-                nearest.set(replace, ts);
+    /**
+     * Offers every row, indexed or not, to nearest
+     */
+    private void search(NeighborHeap nearest, double[] p) {
+        int start = 0;
+        if (index != null) {
+            index.search(data, p, nearest);
+            // Rows appended since the last build are not indexed yet
+            start = index.size();
         }
 
-        return nearest;
+        scanRows(p, nearest, start, data.size());
+    }
+
+    /**
+     * Offers the rows in [start, end) to nearest
+     */
+    private void scanRows(double[] p, NeighborHeap nearest, int start, int end) {
+        data.scan(p, nearest, start, end);
     }
 
-    public List<ConfidenceLabel> getMostConfidentLabels(int k, KNNPoint p) {
-    	if(p.getCoords().size() != dim){
+    public List<ConfidenceLabel> getMostConfidentLabels(int k, double[] p) {
+    	if(p.length != dim){
     		return null;
     	}
-        List<KNNPoint> nearest = getKNearestNeighbors(k, p);
-        List<ConfidenceLabel> cl = new ArrayList<ConfidenceLabel>();
-
-        if (nearest.isEmpty()) {
+        int[] nearest = getKNearestNeighbors(k, p);
+        if (nearest.length == 0) {
             return null;
         }
+        return vote(nearest, nearest.length);
+    }
 
-        List<String> answers = new ArrayList<String>();
-        for (int i = 0; i < nearest.size(); i++) {
-            KNNPoint ts = nearest.get(i);
-
-            String label = ts.getLabel();
-            if (answers.contains(label))
-                continue;
-
-            answers.add(label);
-
-            int count = 1;
-            for (int j = 0; j < nearest.size(); j++) {
-                if (i == j) {
-                    continue;
-                }
-                KNNPoint ts2 = nearest.get(j);
+    /**
+     * Tallies the labels of the first count rows in nearest
+     * @return one ConfidenceLabel per label in order of first appearance,
+     *         then stably sorted by confidence
+     */
+    protected List<ConfidenceLabel> vote(int[] nearest, int count) {
+        int[] tallies = new int[data.numLabels()];
+        int[] order = new int[count];
+        int numIds = tally(nearest, count, tallies, order);
+
+        List<ConfidenceLabel> cl = new ArrayList<ConfidenceLabel>(numIds);
+        for (int j = 0; j < numIds; j++) {
+            cl.add(new ConfidenceLabel(((double) tallies[order[j]])
+                                       / ((double) count), data.getLabelName(order[j])));
+        }
+        Collections.sort(cl);
+        return cl;
+    }
 
-                if (label.equals(ts2.getLabel())) {
-                    count++;
-                }
+    /**
+     * @return the label vote(nearest, count).get(0) would give, without
+     *         building and sorting the whole list
+     */
+    protected ConfidenceLabel firstVote(int[] nearest, int count) {
+        int[] tallies = new int[data.numLabels()];
+        int[] order = new int[count];
+        int numIds = tally(nearest, count, tallies, order);
+
+        // The sort is stable, so ties keep their order of first appearance
+        int best = order[0];
+        for (int j = 1; j < numIds; j++) {
+            if (tallies[order[j]] < tallies[best]) {
+                best = order[j];
             }
+        }
+        return new ConfidenceLabel(((double) tallies[best]) / ((double) count),
+                                   data.getLabelName(best));
+    }
 
-            cl.add(new ConfidenceLabel(((double) count)
-                                       / ((double) nearest.size()), label));
+    /**
+     * Builds a histogram of the label ids of the first count rows in nearest
+     * @param tallies filled with the number of votes per label id
+     * @param order filled with the voted label ids in order of first appearance
+     * @return the number of distinct labels written to order
+     */
+    private int tally(int[] nearest, int count, int[] tallies, int[] order) {
+        int numIds = 0;
+        for (int i = 0; i < count; i++) {
+            int id = data.getLabelId(nearest[i]);
+            if (tallies[id]++ == 0) {
+                order[numIds++] = id;
+            }
         }
-        Collections.sort(cl);
-        return cl;
+        return numIds;
     }
 
     @Override
     public void clearData(){
-        data = new ArrayList<KNNPoint>();
+        data.clear();
+        rebuildIndex();
     }
 
     @Override
-    public void loadData() {
+    public boolean loadData() {
+        TrainingSet examples;
         try {
-            FileInputStream fstream = new FileInputStream(this.datafile);
-            DataInputStream in = new DataInputStream(fstream);
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String strLine;
-            // Read File Line By Line
-	    int i = 0;
-	    while ((strLine = br.readLine()) != null) {
-            add(new KNNPoint(strLine));
-	    }
-	    in.close();
+            examples = TrainingSet.load(this.datafile, dim);
         } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
+            System.err.println("ERR: Could not load " + datafile + ": " + e.getMessage());
+            return false;
         }
-        
-   
+
+        // Index everything once at the end rather than while loading
+        loading = true;
+        try {
+            if (scaler != null) {
+                // Fit to the examples as they would be stored, e.g. with
+                // every flip of a shape, and start over in the scaled space
+                ITrainingData raw = createData(dim);
+                for (int i = 0; i < examples.size(); i++) {
+                    raw.add(examples.getRow(i), examples.getLabel(i));
+                }
+                scaler = scaler.fit(raw);
+                data = createData(scaler.getOutputDim(dim));
+            }
+            for (int i = 0; i < examples.size(); i++) {
+                add(examples.getRow(i), examples.getLabel(i));
+            }
+        } finally {
+            loading = false;
+        }
+        rebuildIndex();
+        return true;
     }
     
     public void printAverage(){
     	// Prints out the average features for each label
-		HashMap<String, Integer> tallies = new HashMap<String, Integer>();
-		HashMap<String, ArrayList<Double>> totals = new HashMap<String, ArrayList<Double>>();
-		for (KNNPoint pt : data) {
-			if (totals.containsKey(pt.getLabel())) {
-				ArrayList<Double> f = totals.get(pt.getLabel());
-				for (int i = 0; i < dim; i++) {
-					f.set(i, f.get(i) + pt.getCoords().get(i));
-				}
-				tallies.put(pt.getLabel(), tallies.get(pt.getLabel()) + 1);
-			} else {
-				tallies.put(pt.getLabel(), 1);
-				ArrayList<Double> f = new ArrayList<Double>();
-				for (int i = 0; i < dim; f.add(i++, 0.0))
-					;
-				totals.put(pt.getLabel(), f);
+		int[] tallies = new int[data.numLabels()];
+		double[][] totals = new double[data.numLabels()][data.getDim()];
+		for (int row = 0; row < data.size(); row++) {
+			int id = data.getLabelId(row);
+			for (int i = 0; i < data.getDim(); i++) {
+				totals[id][i] += data.get(row, i);
 			}
+			tallies[id]++;
 		}
-		for (String label : tallies.keySet()) {
-			System.out.println(label + ":" + tallies.get(label));
-			for (int i = 0; i < dim; i++) {
-				System.out.print(totals.get(label).get(i) / tallies.get(label)
-						+ " ");
+		for (int id = 0; id < tallies.length; id++) {
+			System.out.println(data.getLabelName(id) + ":" + tallies[id]);
+			for (int i = 0; i < data.getDim(); i++) {
+				System.out.print(totals[id][i] / tallies[id] + " ");
 			}
 			System.out.print("\n");
 		}
     }
 
+    /**
+     * @return the leave-one-out accuracy over all of the stored examples,
+     *         see CrossValidator.leaveOneOut
+     */
     public double LOOCV() {
-        int correct = 0;
-        int total = 0;
-        for (int i = 0; i < data.size(); i++) {
-            KNNPoint out = data.get(i);
-            String label = testSample(out);
-            if (label.equals("unknown")) {
-                continue;
-            }
-            if (label.equals(out.getLabel())) {
-                correct++;
-            }
-            total++;
-        }
-        return (double) correct / (double) total;
+        return CrossValidator.leaveOneOut(this).getAccuracy();
     }
 
-    private String testSample(KNNPoint testPoint) {
-        List<KNNPoint> nearest = getKNearestNeighbors(this.Km + 1, testPoint);
-        // remove self from testing
-        if (!nearest.remove(testPoint)) {
-            System.out.println("ERROR in Leave One out Cross Validation");
-            return "unknown";
-        }
-        if (nearest.isEmpty()) {
-            return "unknown";
-        }
-
-        List<ConfidenceLabel> cl = new ArrayList<ConfidenceLabel>();
-        List<String> answers = new ArrayList<String>();
-
-        for (int i = 0; i < nearest.size(); i++) {
-            KNNPoint ts = nearest.get(i);
-
-            String label = ts.getLabel();
-            if (answers.contains(label))
-                continue;
-
-            answers.add(label);
-
-            int count = 1;
-            for (int j = 0; j < nearest.size(); j++) {
-                if (i == j) {
-                    continue;
-                }
-                KNNPoint ts2 = nearest.get(j);
-
-                if (label.equals(ts2.getLabel())) {
-                    count++;
-                }
-            }
+    /**
+     * Classifies the example stored in testRow as if it were not part of
+     * the training data. Safe to call from several threads at once as long
+     * as nothing is being added.
+     */
+    public ConfidenceLabel classifyExcluding(int testRow) {
+        return classifyExcluding(testRow, 1);
+    }
 
-            cl.add(new ConfidenceLabel(((double) count)
-                                       / ((double) nearest.size()), label));
+    /**
+     * Same as classifyExcluding(firstRow) for an example stored as the
+     * numRows rows from firstRow on (see getRowsPerExample), none of which
+     * may vote for it
+     */
+    public ConfidenceLabel classifyExcluding(int firstRow, int numRows) {
+        NeighborHeap nearest = new NeighborHeap(this.Km, maxDistance);
+        nearest.setExcludedRows(firstRow, firstRow + numRows);
+        search(nearest, data.getRow(firstRow));
+        int[] rows = (index != null ? nearest.sortedRows() : nearest.slotRows());
+        if (rows.length == 0) {
+            return new ConfidenceLabel(0.0, "unknown");
         }
+        return firstVote(rows, rows.length);
+    }
 
-        Collections.sort(cl);
-        ConfidenceLabel best = cl.get(0);
-        return best.getLabel();
+    /**
+     * @return how many rows of getData() each added example takes up
+     */
+    public int getRowsPerExample() {
+        return 1;
     }
 }
@@ -0,0 +1,284 @@
+package abolt.classify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import abolt.classify.Features.FeatureCategory;
+import abolt.util.ParallelUtil;
+import april.util.GetOpt;
+
+/**
+ * @purpose Picks K and maxDistance for the KNN of each feature category by
+ *          leave-one-out cross validation over a grid of candidate values.
+ *          The neighbours of every example are searched only once, at the
+ *          largest K and maxDistance of the grid, with all of the example's
+ *          rows left out (a ShapeKNN stores four flips per shape); every
+ *          smaller setting is scored from a prefix of that sorted list.
+ *          Prints a config block with the best values, which
+ *          ClassifierManager reads in place of its defaults.
+ *
+ *          The votes are taken over the neighbours in order of distance,
+ *          as KNN.classify does with an index. Without one, classify takes
+ *          them in the order its scan kept them, so a tie between two
+ *          labels can go the other way there.
+ */
+public class KNNSweep {
+    public static final int[] DEFAULT_K = {1, 3, 5, 7, 10, 15};
+    public static final double[] DEFAULT_MAX_DISTANCE = {0.05, 0.1, 0.2, 0.5, 1, 2};
+
+    /**
+     * Leave-one-out results for every (K, maxDistance) pair of a sweep
+     */
+    public static class Result {
+        public final int[] ks;
+        public final double[] maxDistances;
+        public final int numExamples;
+        // [k][maxDistance]
+        public final int[][] correct;
+        public final int[][] classified;
+
+        Result(int[] ks, double[] maxDistances, int numExamples) {
+            this.ks = ks;
+            this.maxDistances = maxDistances;
+            this.numExamples = numExamples;
+            correct = new int[ks.length][maxDistances.length];
+            classified = new int[ks.length][maxDistances.length];
+        }
+
+        void merge(Result other) {
+            for (int i = 0; i < ks.length; i++) {
+                for (int j = 0; j < maxDistances.length; j++) {
+                    correct[i][j] += other.correct[i][j];
+                    classified[i][j] += other.classified[i][j];
+                }
+            }
+        }
+
+        /**
+         * @return the fraction of the examples that were given a label that
+         *         were given the right one
+         */
+        public double getAccuracy(int i, int j) {
+            return (classified[i][j] == 0 ? 0 : ((double) correct[i][j]) / classified[i][j]);
+        }
+
+        /**
+         * @return the fraction of all examples that were given a label
+         */
+        public double getCoverage(int i, int j) {
+            return (numExamples == 0 ? 0 : ((double) classified[i][j]) / numExamples);
+        }
+
+        /**
+         * @return {i, j} of the setting that labels the most examples
+         *         correctly (an unknown counts as a mistake). Ties go to the
+         *         smallest K, then the smallest maxDistance.
+         */
+        public int[] getBest() {
+            int[] best = {0, 0};
+            for (int i = 0; i < ks.length; i++) {
+                for (int j = 0; j < maxDistances.length; j++) {
+                    if (correct[i][j] > correct[best[0]][best[1]]) {
+                        best[0] = i;
+                        best[1] = j;
+                    }
+                }
+            }
+            return best;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-6s", "K"));
+            for (double maxDistance : maxDistances) {
+                sb.append(String.format("%16s", "d<" + maxDistance));
+            }
+            sb.append("\n");
+            for (int i = 0; i < ks.length; i++) {
+                sb.append(String.format("%-6d", ks[i]));
+                for (int j = 0; j < maxDistances.length; j++) {
+                    sb.append(String.format("%8.4f/%6.4f", getAccuracy(i, j), getCoverage(i, j)));
+                }
+                sb.append("\n");
+            }
+            sb.append("(accuracy/coverage)\n");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Scores every (K, maxDistance) pair by leave-one-out cross validation
+     * over the examples stored in knn. The K and maxDistance knn was
+     * created with are ignored.
+     */
+    public static Result sweep(final KNN knn, final int[] ks, final double[] maxDistances) {
+        final ITrainingData data = knn.getData();
+        int maxK = 0;
+        double maxDist = 0;
+        for (int k : ks) {
+            maxK = Math.max(maxK, k);
+        }
+        for (double d : maxDistances) {
+            maxDist = Math.max(maxDist, d);
+        }
+        final int searchK = maxK;
+        final double searchDist = maxDist;
+        final int rowsPerExample = knn.getRowsPerExample();
+        final int numExamples = data.size() / rowsPerExample;
+
+        int[] bounds = ParallelUtil.split(numExamples, 64);
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (int b = 0; b + 1 < bounds.length; b++) {
+            final int start = bounds[b];
+            final int end = bounds[b + 1];
+            tasks.add(new Callable<Result>() {
+                public Result call() {
+                    Result result = new Result(ks, maxDistances, numExamples);
+                    double[] dists = new double[searchK];
+                    for (int example = start; example < end; example++) {
+                        scoreExample(knn, example * rowsPerExample, rowsPerExample, searchK, searchDist,
+                                     dists, result);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        Result result = new Result(ks, maxDistances, numExamples);
+        for (Result part : ParallelUtil.invokeAll(tasks)) {
+            result.merge(part);
+        }
+        return result;
+    }
+
+    /**
+     * Scores the example stored in the numRows rows from firstRow on, with
+     * none of them among its neighbours
+     */
+    private static void scoreExample(KNN knn, int firstRow, int numRows, int searchK, double searchDist,
+                                     double[] dists, Result result) {
+        ITrainingData data = knn.getData();
+        double[] pt = data.getRow(firstRow);
+        int[] nearest = knn.getSortedNeighborsExcluding(searchK, firstRow, numRows, searchDist);
+        int count = nearest.length;
+        for (int i = 0; i < count; i++) {
+            dists[i] = data.distance(nearest[i], pt);
+        }
+
+        String actual = data.getLabel(firstRow);
+        for (int j = 0; j < result.maxDistances.length; j++) {
+            int inRange = 0;
+            while (inRange < count && dists[inRange] < result.maxDistances[j]) {
+                inRange++;
+            }
+            for (int i = 0; i < result.ks.length; i++) {
+                int n = Math.min(result.ks[i], inRange);
+                if (n == 0) {
+                    continue;
+                }
+                result.classified[i][j]++;
+                if (actual.equals(knn.firstVote(nearest, n).getLabel())) {
+                    result.correct[i][j]++;
+                }
+            }
+        }
+    }
+
+    private static int[] parseInts(String s) {
+        String[] toks = s.split(",");
+        int[] values = new int[toks.length];
+        for (int i = 0; i < toks.length; i++) {
+            values[i] = Integer.parseInt(toks[i].trim());
+        }
+        return values;
+    }
+
+    private static double[] parseDoubles(String s) {
+        String[] toks = s.split(",");
+        double[] values = new double[toks.length];
+        for (int i = 0; i < toks.length; i++) {
+            values[i] = Double.parseDouble(toks[i].trim());
+        }
+        return values;
+    }
+
+    private static String join(int[] values) {
+        String s = "";
+        for (int i = 0; i < values.length; i++) {
+            s += (i == 0 ? "" : ",") + values[i];
+        }
+        return s;
+    }
+
+    private static String join(double[] values) {
+        String s = "";
+        for (int i = 0; i < values.length; i++) {
+            s += (i == 0 ? "" : ",") + values[i];
+        }
+        return s;
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('c', "color", null, "Color training data (.dat) file");
+        opts.addString('s', "shape", null, "Shape training data (.dat) file");
+        opts.addString('z', "size", null, "Size training data (.dat) file");
+        opts.addString('k', "k", join(DEFAULT_K), "Comma separated values of K to try");
+        opts.addString('d', "max-distance", join(DEFAULT_MAX_DISTANCE),
+                       "Comma separated values of maxDistance to try");
+        opts.addString('n', "scaling", "none", "Feature scaling to sweep with: {none, zscore, minmax}");
+        opts.addBoolean('w', "whiten", false, "PCA whiten the scaled features");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help")) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        int[] ks = parseInts(opts.getString("k"));
+        double[] maxDistances = parseDoubles(opts.getString("max-distance"));
+
+        String block = "classify {\n";
+        for (FeatureCategory cat : FeatureCategory.values()) {
+            String datafile = opts.getString(cat.toString().toLowerCase());
+            if (datafile == null) {
+                continue;
+            }
+            KNN knn = ClassifierManager.createKNN(cat, datafile);
+            FeatureScaler scaler = FeatureScaler.create(opts.getString("scaling"), opts.getBoolean("whiten"), 0);
+            knn.setScaler(scaler);
+            knn.loadData();
+
+            long start = System.currentTimeMillis();
+            Result result = sweep(knn, ks, maxDistances);
+            long end = System.currentTimeMillis();
+
+            int[] best = result.getBest();
+            System.out.printf("%s: %d examples, %d ms on %d threads\n", cat, result.numExamples,
+                              end - start, ParallelUtil.getNumThreads());
+            System.out.print(result);
+            System.out.printf("best: K = %d, maxDistance = %s (accuracy %.4f, coverage %.4f)\n\n",
+                              result.ks[best[0]], result.maxDistances[best[1]],
+                              result.getAccuracy(best[0], best[1]), result.getCoverage(best[0], best[1]));
+
+            block += "    " + cat.toString().toLowerCase() + " {\n";
+            if (knn.getScaler() != null) {
+                block += "        scaling = \"" + knn.getScaler().getType().toString().toLowerCase() + "\";\n";
+                block += "        whiten = " + knn.getScaler().isWhitening() + ";\n";
+            }
+            block += "        k = " + result.ks[best[0]] + ";\n";
+            block += "        max_distance = " + result.maxDistances[best[1]] + ";\n";
+            block += "    }\n";
+        }
+        block += "}\n";
+
+        System.out.println("// Merge into the classify block of the bolt config");
+        System.out.print(block);
+    }
+}
@@ -0,0 +1,331 @@
+package abolt.classify;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import abolt.classify.Features.FeatureCategory;
+import april.util.GetOpt;
+
+/**
+ * @purpose Approximate neighbour index for large training sets, using
+ *          locality-sensitive hashing for euclidean distance (p-stable
+ *          projections). Each of numTables tables hashes a row by the
+ *          buckets floor((a.x + b) / width) of numHashes random projections;
+ *          a query only looks at the rows sharing a bucket with it in some
+ *          table. Unlike KDTree and VPTree this may miss true neighbours:
+ *          more tables raise the recall at the cost of latency, more hashes
+ *          per table make the buckets smaller and faster but lower recall.
+ *
+ *          main() measures the recall and speed against an exact KNN.
+ */
+public class LSHIndex implements INeighborIndex {
+    public static final int DEFAULT_TABLES = 8;
+    public static final int DEFAULT_HASHES = 4;
+    public static final double DEFAULT_WIDTH = 4;
+
+    // Table entries pack (bucket key << ROW_BITS) | row
+    private static final int ROW_BITS = 24;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+    // Rows sampled to estimate the typical nearest neighbour distance
+    private static final int WIDTH_SAMPLES = 64;
+
+    private final int numTables;
+    private final int numHashes;
+    private final double widthScale;
+
+    private int size = 0;
+    private int dim;
+    private double width;
+    // [table][hash][dim] projections and [table][hash] offsets, flattened
+    private double[] proj;
+    private double[] offsets;
+    // Per table, the packed entries of all rows sorted by bucket key
+    private long[][] tables;
+
+    public LSHIndex() {
+        this(DEFAULT_TABLES, DEFAULT_HASHES, DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param numTables number of hash tables, the recall/latency knob
+     * @param numHashes projections combined into each table's key
+     * @param widthScale bucket width in multiples of the typical distance
+     *                   between a row and its nearest neighbour
+     */
+    public LSHIndex(int numTables, int numHashes, double widthScale) {
+        this.numTables = numTables;
+        this.numHashes = numHashes;
+        this.widthScale = widthScale;
+    }
+
+    @Override
+    public void build(ITrainingData data) {
+        size = data.size();
+        dim = data.getDim();
+        if (size > ROW_MASK) {
+            throw new IllegalArgumentException("LSHIndex supports at most " + ROW_MASK + " rows");
+        }
+
+        // Seeded so that the same data always gives the same tables
+        Random rand = new Random(0);
+        width = widthScale * typicalNeighborDistance(data, rand);
+        proj = new double[numTables * numHashes * dim];
+        offsets = new double[numTables * numHashes];
+        for (int i = 0; i < proj.length; i++) {
+            proj[i] = rand.nextGaussian();
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = rand.nextDouble() * width;
+        }
+
+        tables = new long[numTables][size];
+        double[] pt = new double[dim];
+        for (int row = 0; row < size; row++) {
+            for (int d = 0; d < dim; d++) {
+                pt[d] = data.get(row, d);
+            }
+            for (int t = 0; t < numTables; t++) {
+                tables[t][row] = (key(t, pt) << ROW_BITS) | row;
+            }
+        }
+        for (int t = 0; t < numTables; t++) {
+            Arrays.sort(tables[t]);
+        }
+    }
+
+    /**
+     * @return the mean distance from a few sampled rows to their nearest
+     *         other row, ignoring exact duplicates
+     */
+    private double typicalNeighborDistance(ITrainingData data, Random rand) {
+        int samples = Math.min(WIDTH_SAMPLES, size);
+        double total = 0;
+        int count = 0;
+        for (int s = 0; s < samples; s++) {
+            double[] pt = data.getRow(rand.nextInt(size));
+            double best = Double.MAX_VALUE;
+            for (int row = 0; row < size; row++) {
+                double distSq = data.distanceSq(row, pt, best);
+                if (distSq > 0 && distSq < best) {
+                    best = distSq;
+                }
+            }
+            if (best < Double.MAX_VALUE) {
+                total += Math.sqrt(best);
+                count++;
+            }
+        }
+        return (count == 0 || total == 0 ? 1 : total / count);
+    }
+
+    /**
+     * @return the bucket key of pt in table t, ROW_BITS less than 64 bits
+     */
+    private long key(int t, double[] pt) {
+        long h = t;
+        for (int m = 0; m < numHashes; m++) {
+            int hash = t * numHashes + m;
+            int off = hash * dim;
+            double dot = offsets[hash];
+            for (int d = 0; d < dim; d++) {
+                dot += proj[off + d] * pt[d];
+            }
+            long bucket = (long) Math.floor(dot / width);
+            h = (h ^ bucket) * 0x9E3779B97F4A7C15L;
+        }
+        return h >>> ROW_BITS;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Offers the rows that share a bucket with the query in any table,
+     * in increasing row order
+     */
+    @Override
+    public void search(ITrainingData data, double[] query, NeighborHeap nearest) {
+        if (size == 0) {
+            return;
+        }
+        int[] candidates = new int[32];
+        int count = 0;
+        for (int t = 0; t < numTables; t++) {
+            long[] table = tables[t];
+            long key = key(t, query);
+            for (int i = lowerBound(table, key << ROW_BITS); i < size && (table[i] >>> ROW_BITS) == key; i++) {
+                if (count == candidates.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(candidates, 0, grown, 0, count);
+                    candidates = grown;
+                }
+                candidates[count++] = (int) (table[i] & ROW_MASK);
+            }
+        }
+
+        Arrays.sort(candidates, 0, count);
+        for (int i = 0; i < count; i++) {
+            int row = candidates[i];
+            if (i > 0 && row == candidates[i - 1]) {
+                continue;
+            }
+            double bound = nearest.bound();
+            double distSq = data.distanceSq(row, query, bound);
+            if (distSq < bound) {
+                nearest.offer(row, distSq);
+            }
+        }
+    }
+
+    /**
+     * @return the first index of the sorted table whose entry is >= value
+     */
+    private static int lowerBound(long[] table, long value) {
+        int lo = 0, hi = table.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public INeighborIndex create() {
+        return new LSHIndex(numTables, numHashes, widthScale);
+    }
+
+    private static int[] parseInts(String s) {
+        String[] toks = s.split(",");
+        int[] values = new int[toks.length];
+        for (int i = 0; i < toks.length; i++) {
+            values[i] = Integer.parseInt(toks[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * @return the mean time in microseconds to classify one of the queries,
+     *         measured after a warm up pass
+     */
+    private static double timeQueries(KNN knn, double[][] queries) {
+        long start = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (double[] query : queries) {
+                knn.classify(query);
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / queries.length;
+    }
+
+    /**
+     * Holds out every 10th example of the file, trains an exact KNN and
+     * one LSH KNN per table count on the rest, and reports how many of the
+     * exact K nearest neighbours LSH finds, how often the labels agree and
+     * the time per query
+     */
+    private static void checkRecall(FeatureCategory cat, String datafile, int[] tableCounts,
+                                    int numHashes, double widthScale) {
+        TrainingSet examples;
+        try {
+            examples = TrainingSet.load(datafile, ClassifierManager.getDimensions(cat));
+        } catch (Exception ex) {
+            System.err.println("ERR: Could not load " + datafile);
+            ex.printStackTrace();
+            return;
+        }
+        KNN exact = ClassifierManager.createKNN(cat, datafile);
+        int numQueries = 0;
+        for (int i = 0; i < examples.size(); i++) {
+            if (i % 10 != 0) {
+                exact.add(examples.getRow(i), examples.getLabel(i));
+            } else {
+                numQueries++;
+            }
+        }
+        double[][] queries = new double[numQueries][];
+        for (int i = 0; i < numQueries; i++) {
+            queries[i] = examples.getRow(i * 10);
+        }
+        int k = exact.Km;
+
+        int[][] truth = new int[numQueries][];
+        ConfidenceLabel[] truthLabels = new ConfidenceLabel[numQueries];
+        for (int q = 0; q < numQueries; q++) {
+            truth[q] = exact.getKNearestNeighbors(k, queries[q]);
+            truthLabels[q] = exact.classify(queries[q]);
+        }
+        double exactUs = timeQueries(exact, queries);
+
+        System.out.printf("%s: %d examples, %d held out queries, K = %d, exact %.1f us/query\n",
+                          cat, exact.getData().size(), numQueries, k, exactUs);
+        System.out.printf("%8s %10s %10s %12s\n", "tables", "recall", "labels", "us/query");
+        for (int numTables : tableCounts) {
+            KNN approx = ClassifierManager.createKNN(cat, datafile);
+            for (int i = 0; i < examples.size(); i++) {
+                if (i % 10 != 0) {
+                    approx.add(examples.getRow(i), examples.getLabel(i));
+                }
+            }
+            approx.setIndex(new LSHIndex(numTables, numHashes, widthScale));
+
+            int found = 0, total = 0, agree = 0;
+            for (int q = 0; q < numQueries; q++) {
+                int[] rows = approx.getKNearestNeighbors(k, queries[q]);
+                ConfidenceLabel label = approx.classify(queries[q]);
+                for (int row : truth[q]) {
+                    for (int r : rows) {
+                        if (r == row) {
+                            found++;
+                            break;
+                        }
+                    }
+                }
+                total += truth[q].length;
+                if (label.getLabel().equals(truthLabels[q].getLabel())) {
+                    agree++;
+                }
+            }
+            double us = timeQueries(approx, queries);
+            System.out.printf("%8d %10.4f %10.4f %12.1f\n", numTables,
+                              (total == 0 ? 1 : ((double) found) / total),
+                              ((double) agree) / numQueries, us);
+        }
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('c', "color", null, "Color training data (.dat) file");
+        opts.addString('s', "shape", null, "Shape training data (.dat) file");
+        opts.addString('z', "size", null, "Size training data (.dat) file");
+        opts.addString('l', "tables", "1,2,4,8,16,32", "Comma separated numbers of tables to try");
+        opts.addInt('m', "hashes", DEFAULT_HASHES, "Projections per table");
+        opts.addDouble('w', "width", DEFAULT_WIDTH, "Bucket width in typical neighbour distances");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help")) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        int[] tableCounts = parseInts(opts.getString("tables"));
+        for (FeatureCategory cat : FeatureCategory.values()) {
+            String datafile = opts.getString(cat.toString().toLowerCase());
+            if (datafile != null) {
+                checkRecall(cat, datafile, tableCounts, opts.getInt("hashes"), opts.getDouble("width"));
+            }
+        }
+    }
+}
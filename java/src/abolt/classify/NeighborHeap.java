@@ -0,0 +1,195 @@
+package abolt.classify;
+
+/**
+ * @purpose A bounded max-heap of (distance, row) pairs used to collect
+ *          the k nearest training examples to a query. The root is always the
+ *          farthest of the kept neighbours, so a candidate can be accepted or
+ *          rejected in O(1) and inserted in O(log k).
+ *
+ *          Every kept neighbour also owns one of k slots. A neighbour fills
+ *          the next free slot, and a closer candidate takes over the slot of
+ *          the neighbour it evicts; among equally far neighbours the one in
+ *          the lowest slot is evicted first. Reading the rows back in slot
+ *          order (slotRows) therefore reproduces the list the original
+ *          replace-the-farthest scan in KNN produced.
+ */
+public class NeighborHeap {
+    private int k;
+    private double maxDist, maxDistSq;
+    private double[] dists;
+    private double[] distSqs;
+    private int[] rows;
+    private int[] slots;
+    private int size;
+    // Optional restriction to the rows of some labels
+    private ITrainingData data = null;
+    private boolean[] allowedLabels = null;
+    // Rows that are never accepted, [excludedStart, excludedEnd)
+    private int excludedStart = 0, excludedEnd = 0;
+
+    /**
+     * @param k the number of neighbours to keep
+     * @param maxDist only candidates strictly closer than this are accepted
+     */
+    public NeighborHeap(int k, double maxDist) {
+        this.k = k;
+        this.maxDist = maxDist;
+        this.maxDistSq = maxDist * maxDist;
+        dists = new double[k];
+        distSqs = new double[k];
+        rows = new int[k];
+        slots = new int[k];
+        size = 0;
+    }
+
+    /**
+     * Only accept rows of data whose label id is set in allowedLabels
+     * @param allowedLabels indexed by label id, or null to accept every row
+     */
+    public void setLabelFilter(ITrainingData data, boolean[] allowedLabels) {
+        this.data = data;
+        this.allowedLabels = allowedLabels;
+    }
+
+    /**
+     * Never accept the rows in [start, end), e.g. to search as if an example
+     * had not been added. The range must cover all of the rows of each
+     * example in it.
+     */
+    public void setExcludedRows(int start, int end) {
+        excludedStart = start;
+        excludedEnd = end;
+    }
+
+    /**
+     * @return whether the label filter and the excluded rows let the row
+     *         in; scans check this before computing the distance
+     */
+    public boolean accepts(int row) {
+        if (row >= excludedStart && row < excludedEnd) {
+            return false;
+        }
+        if (allowedLabels == null) {
+            return true;
+        }
+        int id = data.getLabelId(row);
+        return id < allowedLabels.length && allowedLabels[id];
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * @return the squared radius a candidate must be strictly inside of to
+     *         enter the heap; used as the pruning radius by index searches
+     */
+    public double bound() {
+        return (size < k ? maxDistSq : distSqs[0]);
+    }
+
+    // Heap order: farther first, and the lower slot first among equals
+    private static boolean above(double dist1, int slot1, double dist2, int slot2) {
+        return dist1 > dist2 || (dist1 == dist2 && slot1 < slot2);
+    }
+
+    /**
+     * Offers a candidate row at the given squared distance
+     * @return whether the row was kept
+     */
+    public boolean offer(int row, double distSq) {
+        if (!(distSq < bound()) || !accepts(row)) {
+            return false;
+        }
+        double dist = Math.sqrt(distSq);
+        if (!(dist < (size < k ? maxDist : dists[0]))) {
+            return false;
+        }
+        int i, slot;
+        if (size < k) {
+            // fill the next slot and sift up from the new leaf
+            slot = size;
+            i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!above(dist, slot, dists[parent], slots[parent])) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+        } else {
+            // take over the slot of the evicted root and sift down
+            slot = slots[0];
+            i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size
+                    && above(dists[child + 1], slots[child + 1], dists[child], slots[child])) {
+                    child++;
+                }
+                if (!above(dists[child], slots[child], dist, slot)) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+        }
+        dists[i] = dist;
+        distSqs[i] = distSq;
+        rows[i] = row;
+        slots[i] = slot;
+        return true;
+    }
+
+    private void move(int from, int to) {
+        dists[to] = dists[from];
+        distSqs[to] = distSqs[from];
+        rows[to] = rows[from];
+        slots[to] = slots[from];
+    }
+
+    /**
+     * @return the kept rows in slot order
+     */
+    public int[] slotRows() {
+        int[] slotRows = new int[size];
+        for (int i = 0; i < size; i++) {
+            slotRows[slots[i]] = rows[i];
+        }
+        return slotRows;
+    }
+
+    /**
+     * @return the kept rows ordered by increasing distance, ties broken by
+     *         row so that the result is independent of the visiting order
+     */
+    public int[] sortedRows() {
+        int[] sortedRows = new int[size];
+        double[] sortedDists = new double[size];
+        for (int i = 0; i < size; i++) {
+            // insertion sort, k is small
+            int j = i;
+            while (j > 0 && (sortedDists[j - 1] > dists[i]
+                             || (sortedDists[j - 1] == dists[i] && sortedRows[j - 1] > rows[i]))) {
+                sortedDists[j] = sortedDists[j - 1];
+                sortedRows[j] = sortedRows[j - 1];
+                j--;
+            }
+            sortedDists[j] = dists[i];
+            sortedRows[j] = rows[i];
+        }
+        return sortedRows;
+    }
+}
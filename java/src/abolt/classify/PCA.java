@@ -3,9 +3,13 @@ package abolt.classify;
 import java.awt.Color;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -20,6 +24,162 @@ public class PCA {
 		return c.getRed() > 1 || c.getGreen() > 1 || c.getBlue() > 1;
 	}
 
+	/**
+	 * Same as isValidPixel(new Color(rgb))
+	 */
+	public static boolean isValidPixel(int rgb){
+		return ((rgb >> 16) & 0xff) > 1 || ((rgb >> 8) & 0xff) > 1 || (rgb & 0xff) > 1;
+	}
+
+	/**
+	 * Sums over the valid pixels of an image, gathered in one pass, that
+	 * give their mean and covariance and the extent of the pixels along any
+	 * direction. Coordinates are ints, so the sums are exact.
+	 */
+	public static class PixelStatistics {
+		int n = 0;
+		long sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+		// The smallest and largest y of the valid pixels in each column, a
+		// linear function of the pixels is largest and smallest at these
+		final int[] top, bottom;
+
+		PixelStatistics(int width){
+			top = new int[width];
+			bottom = new int[width];
+			Arrays.fill(top, Integer.MAX_VALUE);
+			Arrays.fill(bottom, Integer.MIN_VALUE);
+		}
+
+		void add(int x, int y){
+			n++;
+			sx += x;
+			sy += y;
+			sxx += x*x;
+			syy += y*y;
+			sxy += x*y;
+			if(y < top[x]){
+				top[x] = y;
+			}
+			if(y > bottom[x]){
+				bottom[x] = y;
+			}
+		}
+
+		public int size(){
+			return n;
+		}
+
+		/**
+		 * Same as getMean(getPixels(img))
+		 */
+		public double[] getMean(){
+			return new double[]{((double)sx)/n, ((double)sy)/n};
+		}
+
+		/**
+		 * The covariance of getCov(getPixels(img), getMean()), rounded once
+		 * from the exact value
+		 */
+		public double[][] getCov(){
+			double nn = ((double)n)*n;
+			double xx = (n*sxx - sx*sx)/nn;
+			double yy = (n*syy - sy*sy)/nn;
+			double xy = (n*sxy - sx*sy)/nn;
+			return new double[][]{{xx, xy}, {xy, yy}};
+		}
+
+		/**
+		 * Same as projectOntoVector(getPixels(img), mean, v), but only
+		 * visits the top and bottom pixel of each column
+		 */
+		public double[] projectOntoVector(double[] mean, double[] v){
+			double min = Double.MAX_VALUE;
+			double max = Double.MIN_VALUE;
+			for(int x = 0; x < top.length; x++){
+				if(top[x] > bottom[x]){
+					continue;
+				}
+				double p1 = (x-mean[0])*v[0] + (top[x]-mean[1])*v[1];
+				double p2 = (x-mean[0])*v[0] + (bottom[x]-mean[1])*v[1];
+				min = (p1 < min ? p1 : min);
+				max = (p1 > max ? p1 : max);
+				min = (p2 < min ? p2 : min);
+				max = (p2 > max ? p2 : max);
+			}
+			return new double[]{min, max};
+		}
+	}
+
+	public static PixelStatistics getPixelStatistics(BufferedImage img){
+		return getPixelStatistics(img, null);
+	}
+
+	/**
+	 * Gathers the PixelStatistics of the valid pixels of img. A 3 byte BGR
+	 * image, as ObjectInfo.getImage makes, is read straight from its data
+	 * buffer; other images through getRGB.
+	 * @param mask if not null, the valid pixels are set in it
+	 */
+	public static PixelStatistics getPixelStatistics(BufferedImage img, BinaryMask mask){
+		int w = img.getWidth();
+		int h = img.getHeight();
+		PixelStatistics stats = new PixelStatistics(w);
+		WritableRaster raster = img.getRaster();
+		if(img.getType() == BufferedImage.TYPE_3BYTE_BGR
+				&& raster.getDataBuffer() instanceof DataBufferByte
+				&& raster.getSampleModel() instanceof ComponentSampleModel
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0){
+			ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+			DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+			byte[] data = buffer.getData();
+			int[] bands = sm.getBandOffsets();
+			int b0 = bands[0], b1 = bands[1], b2 = bands[2];
+			int pixelStride = sm.getPixelStride();
+			int scanlineStride = sm.getScanlineStride();
+			for(int y = 0; y < h; y++){
+				int off = buffer.getOffset() + y*scanlineStride;
+				for(int x = 0; x < w; x++, off += pixelStride){
+					if((data[off + b0] & 0xff) > 1 || (data[off + b1] & 0xff) > 1 || (data[off + b2] & 0xff) > 1){
+						stats.add(x, y);
+						if(mask != null){
+							mask.set(x, y);
+						}
+					}
+				}
+			}
+		} else {
+			for(int y = 0; y < h; y++){
+				for(int x = 0; x < w; x++){
+					if(isValidPixel(img.getRGB(x, y))){
+						stats.add(x, y);
+						if(mask != null){
+							mask.set(x, y);
+						}
+					}
+				}
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Gathers the PixelStatistics of the pixels set in mask
+	 */
+	public static PixelStatistics getPixelStatistics(BinaryMask mask){
+		int w = mask.getWidth();
+		int h = mask.getHeight();
+		PixelStatistics stats = new PixelStatistics(w);
+		byte[] data = mask.getData();
+		for(int y = 0, off = 0; y < h; y++){
+			for(int x = 0; x < w; x++, off++){
+				if(data[off] != 0){
+					stats.add(x, y);
+				}
+			}
+		}
+		return stats;
+	}
+
 	public static double[] getMean(ArrayList<int[]> pixels){
 		// compute the mean
     	int n = pixels.size();
@@ -86,8 +246,7 @@ public class PCA {
 		ArrayList<int[]> pixels = new ArrayList<int[]>();
 	    for(int i = 0; i < img.getWidth(); i++){
 	    	for(int j = 0; j < img.getHeight(); j++){
-	    		Color c = new Color(img.getRGB(i, j));
-	    		if(isValidPixel(c)){
+	    		if(isValidPixel(img.getRGB(i, j))){
 	    			pixels.add(new int[]{i, j});
 	    		}
 	    	}
@@ -130,8 +289,7 @@ public class PCA {
 						}
 					}
 					if(bounds.contains(xi, yi)){
-						Color color = new Color(img.getRGB(xi, yi));
-						if(isValidPixel(color)){
+						if(isValidPixel(img.getRGB(xi, yi))){
 							return dist;
 						}
 					}
@@ -146,36 +304,65 @@ public class PCA {
 	}
 
 	public static ArrayList<Double> getFeatures(BufferedImage img, int numFeatures){
+		double[] features = getFeatureArray(img, numFeatures);
+		return (features == null ? null : FEUtil.toList(features));
+	}
+
+	/**
+	 * @return the aspect ratio of the oriented bounding box followed by the
+	 *         top and bottom profiles, or null if the image has no pixels
+	 */
+	public static double[] getFeatureArray(BufferedImage img, int numFeatures){
+	    BinaryMask mask = BinaryMask.obtain(img.getWidth(), img.getHeight());
+	    try {
+	    	return getFeatureArray(getPixelStatistics(img, mask), mask, numFeatures);
+	    } finally {
+	    	mask.release();
+	    }
+	}
+
+	/**
+	 * The features of the object whose pixels are set in mask, the same as
+	 * for an image with exactly those pixels valid
+	 */
+	public static double[] getFeatureArray(BinaryMask mask, int numFeatures){
+		return getFeatureArray(getPixelStatistics(mask), mask, numFeatures);
+	}
+
+	private static double[] getFeatureArray(PixelStatistics pixels, BinaryMask mask, int numFeatures){
 		// Directions are with right being +v1 and up being +v2
 
-	    ArrayList<int[]> pixels = getPixels(img);
 	    if(pixels.size() == 0){
 	    	return null;
 	    }
-		double[] mean = getMean(pixels);
-    	double[][] cov = getCov(pixels, mean);
+		double[] mean = pixels.getMean();
+    	double[][] cov = pixels.getCov();
 
     	double[] v1 = getPrincipleEigenvector(cov);
 	    double[] v2 = new double[]{-v1[1], v1[0]}; // perpendicular vector
 
 		// project the pixels onto each axis (get OBB limits from mean)
-	    double[] proj1 = projectOntoVector(pixels, mean, v1);
-	    double[] proj2 = projectOntoVector(pixels, mean, v2);
+	    double[] proj1 = pixels.projectOntoVector(mean, v1);
+	    double[] proj2 = pixels.projectOntoVector(mean, v2);
 
 	    // left center of the OBB
 	    double[] leftCenter = new double[2];
 	    leftCenter[0] = mean[0] + proj1[0]*v1[0];
 	    leftCenter[1] = mean[1] + proj1[0]*v1[1];
 
-//	    System.out.println(img.getWidth() + ", " + img.getHeight());
+//	    System.out.println(mask.getWidth() + ", " + mask.getHeight());
 //	    System.out.println(mean[0] + ", " + mean[1]);
 //	    System.out.println("v1" + v1[0] + ", " + v1[1]);
 //	    System.out.println("v2" + v2[0] + ", " + v2[1]);
 //	    System.out.println(proj1[0] + ", " + proj1[1]);
 //	    System.out.println(proj2[0] + ", " + proj2[1]);
 
-	    ArrayList<Double> features = new ArrayList<Double>();
-	    features.add((proj1[1] - proj1[0])/(proj2[1] - proj2[0]));
+	    float[] stations = getStations(numFeatures);
+	    // The rays below are marched against the mask of valid pixels
+	    BoundaryProfile profile = new BoundaryProfile(mask);
+	    double[] features = new double[1 + 2*stations.length];
+	    int n = 0;
+	    features[n++] = (proj1[1] - proj1[0])/(proj2[1] - proj2[0]);
 	    for(int i = 0; i < 2; i++){
 	    	// Start at bottom-left or top-left
 	    	double[] start = new double[2];
@@ -186,17 +373,40 @@ public class PCA {
 	    	double[] dir = LinAlg.scale(v2, (i == 0 ? 1 : -1));
 
 	    	// Pick points evenly along the line
-	    	for(float perc = .02f; perc <= .98; perc += .95f/(numFeatures-1)){
+	    	for(float perc : stations){
 	    		double[] pt = new double[2];
 	    		pt[0] = start[0] + perc*(proj1[1] - proj1[0])*v1[0];
 	    		pt[1] = start[1] + perc*(proj1[1] - proj1[0])*v1[1];
-	    		features.add(getFeature(img, pt, dir)/(proj2[1] - proj2[0]));
+	    		features[n++] = profile.getDistance(pt, dir)/(proj2[1] - proj2[0]);
 	    	}
 	    }
 
     	return features;
 	}
 
+	/**
+	 * @return the fractions of the box length the profiles are sampled at,
+	 *         evenly spaced from .02 up to .98
+	 */
+	private static float[] getStations(int numFeatures){
+		float[] stations = new float[Math.max(numFeatures, 1)];
+		int n = 0;
+		for(float perc = .02f; perc <= .98; perc += .95f/(numFeatures-1)){
+			if(n == stations.length){
+				float[] grown = new float[2*n];
+				System.arraycopy(stations, 0, grown, 0, n);
+				stations = grown;
+			}
+			stations[n++] = perc;
+		}
+		if(n == stations.length){
+			return stations;
+		}
+		float[] trimmed = new float[n];
+		System.arraycopy(stations, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
 	public static void main(String args[])
     {
 		BufferedImage img = null;
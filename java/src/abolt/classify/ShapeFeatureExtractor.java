@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import abolt.classify.Features.FeatureCategory;
 import abolt.kinect.*;
 /**
  * @author Aaron
@@ -15,15 +16,39 @@ import abolt.kinect.*;
 public class ShapeFeatureExtractor
 {
 	public static ArrayList<Double> getFeatures(ObjectInfo object) {
-		return getFeatures(object.getImage());
+		return object.getFeatures(FeatureCategory.SHAPE);
 	}
 
 	public static ArrayList<Double> getFeatures(ArrayList<double[]> points) {
-		BufferedImage img = ObjectInfo.getImage(points, null);
-		return getFeatures(img);
+		double[] features = getFeatureArray(points);
+		return (features == null ? null : FEUtil.toList(features));
 	}
 	
 	public static ArrayList<Double> getFeatures(BufferedImage img){
 		return PCA.getFeatures(img, 7);
 	}
+
+	public static double[] getFeatureArray(ArrayList<double[]> points) {
+		BinaryMask mask = ObjectInfo.getMask(points);
+		try {
+			return getFeatureArray(mask);
+		} finally {
+			mask.release();
+		}
+	}
+
+	/**
+	 * @return the features of the object whose pixels are set in mask, or
+	 *         null if there are none
+	 */
+	public static double[] getFeatureArray(BinaryMask mask){
+		return PCA.getFeatureArray(mask, 7);
+	}
+
+	/**
+	 * @return the features, or null if the image has no object pixels
+	 */
+	public static double[] getFeatureArray(BufferedImage img){
+		return PCA.getFeatureArray(img, 7);
+	}
 }
@@ -30,6 +30,14 @@ public class SimFeatures {
 	public static ArrayList<Double> getColorFeatures(String color){
 		return new ArrayList<Double>(Arrays.asList(colorFeatures.get(color.toLowerCase())));
 	}
+
+	public static double[] getColorFeatureArray(String color){
+		return toArray(colorFeatures.get(color.toLowerCase()));
+	}
+
+	private static double[] toArray(Double[] features){
+		return (features == null ? null : FEUtil.toArray(Arrays.asList(features)));
+	}
 	
 	// Mapping from a color string to a color object
 	private static HashMap<String, Color> colorValues;
@@ -58,6 +66,10 @@ public class SimFeatures {
 	public static ArrayList<Double> getSizeFeatures(String size){
 		return new ArrayList<Double>(Arrays.asList(sizeFeatures.get(size.toLowerCase())));
 	}
+
+	public static double[] getSizeFeatureArray(String size){
+		return toArray(sizeFeatures.get(size.toLowerCase()));
+	}
 	
 	// Mapping from a size string to a scale value
 	private static HashMap<String, Double> sizeValues;
@@ -83,6 +95,10 @@ public class SimFeatures {
 	public static ArrayList<Double> getShapeFeatures(String shape){
 		return new ArrayList<Double>(Arrays.asList(shapeFeatures.get(shape.toLowerCase())));
 	}
+
+	public static double[] getShapeFeatureArray(String shape){
+		return toArray(shapeFeatures.get(shape.toLowerCase()));
+	}
 	
 	// Mapping from a shape string to a sim object with the given shape
 	public static VisObject constructVisObject(String shape, Color color, double scale){
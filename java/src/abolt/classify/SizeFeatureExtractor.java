@@ -4,7 +4,6 @@ import java.util.ArrayList;
 
 import abolt.kinect.KUtils;
 import abolt.kinect.ObjectInfo;
-import april.jmat.LinAlg;
 /**
  * @author Aaron
  * Contains methods for extracting size features from an object or point cloud
@@ -17,33 +16,58 @@ public class SizeFeatureExtractor{
 
 	public static ArrayList<Double> getFeatures(ArrayList<double[]> points)
     {
-		ArrayList<Double> features = new ArrayList<Double>();
+		return FEUtil.toList(getFeatureArray(points));
+	}
+
+	public static double[] getFeatureArray(ArrayList<double[]> points)
+    {
 		if(points.size() == 0){
-			features.add(0.0);
-			features.add(0.0);
+			return new double[2];
+		}
+		double[] sums = new double[3];
+		for(double[] pt : points){
+			sums[0] += pt[0];
+			sums[1] += pt[1];
+			sums[2] += pt[2];
+		}
+		return getFeatureArray(boundingBox(points), sums, points);
+	}
+
+	/**
+	 * Size features from the bounding box and the sums of the coordinates,
+	 * e.g. as ObjectInfo keeps them while points are added. Only the
+	 * average distance from the mean needs a pass over the points.
+	 **
+	 * @param bbox [xmin, ymin, zmin, xmax, ymax, zmax]
+	 * @param sums [sum x, sum y, sum z]
+	 */
+	public static double[] getFeatureArray(double[] bbox, double[] sums, ArrayList<double[]> points)
+    {
+		double[] features = new double[2];
+		int n = points.size();
+		if(n == 0){
 			return features;
 		}
 
 		// Feature: Length of bbox diagonal
-		double[] bbox = boundingBox(points);
-		features.add(Math.sqrt(LinAlg.normF(new double[]{bbox[3] - bbox[0], bbox[4] - bbox[1], bbox[5] - bbox[2]})));
+		double dx = bbox[3] - bbox[0];
+		double dy = bbox[4] - bbox[1];
+		double dz = bbox[5] - bbox[2];
+		features[0] = Math.sqrt(dx*dx + dy*dy + dz*dz);
 
 		// Feature: average distance from the mean
-		double[] mean = new double[4];
-		for(double[] pt : points){
-			mean = LinAlg.add(mean, pt);
-		}
-		mean = LinAlg.scale(mean, 1.0/points.size());
-
+		double scale = 1.0/n;
+		double mx = sums[0]*scale;
+		double my = sums[1]*scale;
+		double mz = sums[2]*scale;
 		double distSum = 0;
 		for(double[] pt : points){
-			double[] diff = LinAlg.subtract(pt, mean);
-			diff[3] = 0;
-			distSum += Math.sqrt(LinAlg.normF(diff));
+			double ex = pt[0] - mx;
+			double ey = pt[1] - my;
+			double ez = pt[2] - mz;
+			distSum += Math.sqrt(ex*ex + ey*ey + ez*ez);
 		}
-		distSum /= points.size();
-
-		features.add(distSum);
+		features[1] = distSum/n;
 
 		return features;
 	}
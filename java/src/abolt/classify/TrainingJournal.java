@@ -0,0 +1,468 @@
+package abolt.classify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * @purpose Write-ahead log of the training examples a classifier learns
+ *          online, so they survive restarts. Examples are appended to
+ *          "<datafile>.journal" by a background thread that writes and
+ *          syncs everything queued since its last write at once (group
+ *          commit), so append() never touches the disk. Once the journal
+ *          holds compactSize examples they are folded into the data file
+ *          and the journal starts over.
+ *
+ *          Each record is (int length, payload, long crc32 of payload) with
+ *          payload = (int dim, dim doubles, UTF label). A torn record at the
+ *          end of the file, e.g. after a crash, is dropped.
+ *
+ *          A batch that could not be written is retried after RETRY_DELAY_MS
+ *          together with whatever was queued meanwhile, so flush() only
+ *          returns true once the examples are really on disk; it gives up
+ *          waiting after a timeout rather than hanging its caller.
+ */
+public class TrainingJournal {
+    // How long flush() waits for the writer by default, and at exit
+    public static final long FLUSH_TIMEOUT_MS = 10000;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private static class Entry {
+        final double[] coords;
+        final String label;
+
+        Entry(double[] coords, String label) {
+            this.coords = coords;
+            this.label = label;
+        }
+    }
+
+    private final String datafile;
+    private final String journalfile;
+    private final int dim;
+    private final int compactSize;
+
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+    private Thread writer = null;
+
+    // Number of entries appended, written and given up on, guarded by this
+    private long appended = 0;
+    private long written = 0;
+    private long dropped = 0;
+
+    // Only touched by the writer thread and, while the writer is idle, by
+    // replay; the file itself is guarded by fileLock
+    private final Object fileLock = new Object();
+    private FileOutputStream fout = null;
+    private DataOutputStream out = null;
+    private int numRecords = 0;
+
+    /**
+     * @param datafile the base data file the journal belongs to
+     * @param dim the number of features of each example
+     * @param compactSize how many examples the journal may hold before it is
+     *                    folded into datafile, 0 to never compact
+     */
+    public TrainingJournal(String datafile, int dim, int compactSize) {
+        this.datafile = datafile;
+        this.journalfile = datafile + ".journal";
+        this.dim = dim;
+        this.compactSize = compactSize;
+    }
+
+    public String getJournalFile() {
+        return journalfile;
+    }
+
+    /**
+     * Queues an example to be written. Never blocks on disk I/O. Examples
+     * with a NaN or infinite feature are not journaled, the data file
+     * cannot hold them.
+     */
+    public void append(double[] features, String label) {
+        if (features.length != dim || label == null) {
+            return;
+        }
+        if (!isFinite(features)) {
+            System.err.println("WRN: Not journaling an example of " + label + " with non-finite features");
+            return;
+        }
+        synchronized (this) {
+            if (writer == null) {
+                startWriter();
+            }
+            appended++;
+        }
+        queue.add(new Entry(features.clone(), label));
+    }
+
+    private static boolean isFinite(double[] features) {
+        for (double d : features) {
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as flush(FLUSH_TIMEOUT_MS)
+     */
+    public boolean flush() {
+        return flush(FLUSH_TIMEOUT_MS);
+    }
+
+    /**
+     * Blocks until every example appended before the call is on disk, or
+     * until timeoutMs have passed
+     * @return true if the examples are on disk, false on a timeout or if
+     *         some of them could not be written
+     */
+    public synchronized boolean flush(long timeoutMs) {
+        long target = appended;
+        long droppedBefore = dropped;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (written + dropped < target) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                System.err.println("WRN: Timed out waiting for " + (target - written - dropped)
+                                   + " examples to be written to " + journalfile);
+                return false;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return (dropped == droppedBefore);
+    }
+
+    /**
+     * Adds every example in the journal to classifier. Call flush() first
+     * so that queued examples are included.
+     * @return the number of examples replayed
+     */
+    public int replay(IClassifier classifier) {
+        synchronized (fileLock) {
+            ArrayList<Entry> entries = new ArrayList<Entry>();
+            readEntries(entries);
+            for (Entry entry : entries) {
+                classifier.add(entry.coords, entry.label);
+            }
+            return entries.size();
+        }
+    }
+
+    /**
+     * Loads classifier's data file and then replays the journal into it,
+     * with the writer held off in between, so that a compaction cannot
+     * move examples from the journal into the data file after it was read
+     * (losing them) or while it is read (tearing its last line). Queued
+     * examples are flushed first.
+     * @return false if classifier.loadData() failed, in which case nothing
+     *         is replayed
+     */
+    public boolean loadAndReplay(IClassifier classifier) {
+        flush();
+        synchronized (fileLock) {
+            if (!classifier.loadData()) {
+                return false;
+            }
+            replay(classifier);
+            return true;
+        }
+    }
+
+    private void startWriter() {
+        writer = new Thread("TrainingJournal " + journalfile) {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        // Don't lose queued examples when the program exits normally, but
+        // don't hold up the exit if the disk is gone
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flush(FLUSH_TIMEOUT_MS);
+            }
+        });
+    }
+
+    private void writeLoop() {
+        ArrayList<Entry> batch = new ArrayList<Entry>();
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(queue.take());
+                } else {
+                    // Retrying a failed batch
+                    Thread.sleep(RETRY_DELAY_MS);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            boolean done = false;
+            synchronized (fileLock) {
+                try {
+                    writeBatch(batch);
+                    done = true;
+                } catch (IOException ex) {
+                    System.err.println("ERR: Could not write to " + journalfile + ", retrying");
+                    ex.printStackTrace();
+                } catch (RuntimeException ex) {
+                    // Not something a retry would fix
+                    System.err.println("ERR: Dropping " + batch.size() + " examples that could not be written to "
+                                       + journalfile);
+                    ex.printStackTrace();
+                    synchronized (this) {
+                        dropped += batch.size();
+                        notifyAll();
+                    }
+                    batch.clear();
+                    continue;
+                }
+
+                if (done && compactSize > 0 && numRecords >= compactSize) {
+                    // The batch is in the journal either way
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        System.err.println("ERR: Could not compact " + journalfile + " into " + datafile);
+                        ex.printStackTrace();
+                    } catch (RuntimeException ex) {
+                        System.err.println("ERR: Could not compact " + journalfile + " into " + datafile);
+                        ex.printStackTrace();
+                    }
+                }
+            }
+
+            if (done) {
+                synchronized (this) {
+                    written += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Appends the batch to the journal and syncs it. If that fails, the
+     * journal is cut back to where it was so a retry does not duplicate
+     * records.
+     */
+    private void writeBatch(ArrayList<Entry> batch) throws IOException {
+        if (out == null) {
+            openOutput();
+        }
+        long start = fout.getChannel().size();
+        try {
+            writeRecords(batch);
+        } catch (IOException ex) {
+            closeOutput();
+            truncate(start);
+            throw ex;
+        }
+        numRecords += batch.size();
+    }
+
+    private void truncate(long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(journalfile, "rw");
+            try {
+                if (raf.length() > length) {
+                    raf.setLength(length);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            // openOutput drops a torn record on the next attempt
+        }
+    }
+
+    private void writeRecords(ArrayList<Entry> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        for (Entry entry : batch) {
+            bytes.reset();
+            payload.writeInt(entry.coords.length);
+            for (double d : entry.coords) {
+                payload.writeDouble(d);
+            }
+            payload.writeUTF(entry.label);
+            payload.flush();
+
+            crc.reset();
+            crc.update(bytes.toByteArray());
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.writeLong(crc.getValue());
+        }
+        out.flush();
+        fout.getFD().sync();
+    }
+
+    /**
+     * Opens the journal for appending, cutting off a torn last record so
+     * that new records stay readable
+     */
+    private void openOutput() throws IOException {
+        long valid = readEntries(null);
+        File file = new File(journalfile);
+        if (file.exists() && file.length() > valid) {
+            System.err.println("WRN: Dropping " + (file.length() - valid) + " torn bytes from " + journalfile);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        fout = new FileOutputStream(journalfile, true);
+        out = new DataOutputStream(new BufferedOutputStream(fout));
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Nothing more can be done with the stream
+            }
+        }
+        out = null;
+        fout = null;
+    }
+
+    /**
+     * Reads the records of the journal, stopping at the first torn one
+     * @param entries filled with the records read, may be null
+     * @return the length of the valid part of the file in bytes
+     */
+    private long readEntries(ArrayList<Entry> entries) {
+        File file = new File(journalfile);
+        numRecords = 0;
+        if (!file.exists()) {
+            return 0;
+        }
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || valid + 12 + length > file.length()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) {
+                    break;
+                }
+
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                double[] coords = new double[rec.readInt()];
+                for (int i = 0; i < coords.length; i++) {
+                    coords[i] = rec.readDouble();
+                }
+                String label = rec.readUTF();
+                if (entries != null && coords.length == dim) {
+                    entries.add(new Entry(coords, label));
+                }
+                numRecords++;
+                valid += 12 + length;
+            }
+        } catch (EOFException ex) {
+            // End of the file, or a torn last record
+        } catch (IOException ex) {
+            System.err.println("ERR: Could not read " + journalfile);
+            ex.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // Only read from
+                }
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Appends the journal to the data file (and refreshes its binary copy if
+     * it had an up to date one), then empties the journal. A crash between
+     * the two steps replays the compacted examples a second time.
+     */
+    private void compact() throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        readEntries(entries);
+        // Journals written before append() checked for them may hold
+        // examples the data file cannot
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (!isFinite(entries.get(i).coords)) {
+                System.err.println("WRN: Dropping an example of " + entries.get(i).label
+                                   + " with non-finite features from " + journalfile);
+                entries.remove(i);
+            }
+        }
+
+        String binfile = BinaryTrainingData.getBinaryPath(datafile);
+        if (!new File(datafile).exists() && new File(binfile).exists()
+            || binfile.equals(datafile)) {
+            // Only a binary file to fold into
+            TrainingSet set = BinaryTrainingData.read(binfile);
+            for (Entry entry : entries) {
+                set.add(entry.coords, entry.label);
+            }
+            BinaryTrainingData.write(set, binfile, null);
+        } else {
+            boolean hadBinary = BinaryTrainingData.isCurrent(datafile);
+            FileOutputStream dataOut = new FileOutputStream(datafile, true);
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(dataOut, "UTF-8"));
+            for (Entry entry : entries) {
+                pw.println(FEUtil.toDataLine(entry.coords, entry.label));
+            }
+            pw.flush();
+            dataOut.getFD().sync();
+            pw.close();
+
+            if (hadBinary) {
+                long[] stamp = BinaryTrainingData.getStamp(datafile);
+                BinaryTrainingData.write(TrainingSet.loadText(datafile, dim), binfile, stamp);
+            }
+        }
+
+        closeOutput();
+        fout = new FileOutputStream(journalfile, false);
+        out = new DataOutputStream(new BufferedOutputStream(fout));
+        fout.getFD().sync();
+        numRecords = 0;
+    }
+}
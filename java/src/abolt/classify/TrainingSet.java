@@ -0,0 +1,264 @@
+package abolt.classify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @purpose Packed storage for the training examples of a classifier. Every
+ *          example is a row of a single row-major double[] with a parallel
+ *          int[] column of label ids, so scans over the data touch contiguous
+ *          memory and never unbox anything.
+ */
+public class TrainingSet implements ITrainingData {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int dim;
+    private int size;
+    private double[] coords;
+    private int[] labelIds;
+
+    // Interned label table, ids are indices into labelNames
+    private ArrayList<String> labelNames;
+    private HashMap<String, Integer> labelIndex;
+
+    public TrainingSet(int dim) {
+        this.dim = dim;
+        reset();
+    }
+
+    /**
+     * Wraps examples that are already packed, the arrays are not copied
+     */
+    TrainingSet(int dim, int size, double[] coords, int[] labelIds, List<String> labels) {
+        assert (coords.length == labelIds.length * dim && size <= labelIds.length);
+        this.dim = dim;
+        this.size = size;
+        this.coords = coords;
+        this.labelIds = labelIds;
+        labelNames = new ArrayList<String>();
+        labelIndex = new HashMap<String, Integer>();
+        for (String label : labels) {
+            internLabel(label);
+        }
+    }
+
+    /**
+     * Reads the examples of datafile, or of its binary copy (see
+     * BinaryTrainingData) when that was made from the current datafile.
+     * A binary copy that cannot be read falls back to datafile.
+     */
+    public static TrainingSet load(String datafile, int dim) throws IOException {
+        if (BinaryTrainingData.isCurrent(datafile)) {
+            String binfile = BinaryTrainingData.getBinaryPath(datafile);
+            boolean hasText = !binfile.equals(datafile) && new File(datafile).isFile();
+            try {
+                TrainingSet set = BinaryTrainingData.read(binfile);
+                if (set.getDim() == dim) {
+                    return set;
+                }
+                System.err.println("WRN: " + binfile + " has " + set.getDim() + " dimensions instead of "
+                                   + dim + ", reading " + datafile);
+            } catch (IOException ex) {
+                if (!hasText) {
+                    throw ex;
+                }
+                System.err.println("WRN: Could not read " + binfile + " (" + ex.getMessage() + "), reading "
+                                   + datafile);
+            }
+        }
+        return loadText(datafile, dim);
+    }
+
+    /**
+     * Reads the examples of a .dat file with lines of the form
+     * "[f1 f2 ... fn ] {label}". Lines without dim features are skipped.
+     * Large files are parsed on several threads, see DataFileParser.
+     */
+    public static TrainingSet loadText(String datafile, int dim) throws IOException {
+        return DataFileParser.parse(datafile, dim);
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every example and every label from the set
+     */
+    public void clear() {
+        reset();
+    }
+
+    private void reset() {
+        size = 0;
+        coords = new double[INITIAL_CAPACITY * dim];
+        labelIds = new int[INITIAL_CAPACITY];
+        labelNames = new ArrayList<String>();
+        labelIndex = new HashMap<String, Integer>();
+    }
+
+    /**
+     * @return the id for the given label, adding it to the table if needed
+     */
+    public int internLabel(String label) {
+        Integer id = labelIndex.get(label);
+        if (id == null) {
+            id = labelNames.size();
+            labelNames.add(label);
+            labelIndex.put(label, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the given label, or -1 if no example has it
+     */
+    public int getLabelId(String label) {
+        Integer id = labelIndex.get(label);
+        return (id == null ? -1 : id);
+    }
+
+    public String getLabelName(int labelId) {
+        return labelNames.get(labelId);
+    }
+
+    public int numLabels() {
+        return labelNames.size();
+    }
+
+    /**
+     * Appends an example to the set
+     * @return the row the example was stored in
+     */
+    public int add(double[] pt, String label) {
+        assert (pt.length == dim);
+        ensureCapacity(size + 1);
+        System.arraycopy(pt, 0, coords, size * dim, dim);
+        labelIds[size] = internLabel(label);
+        return size++;
+    }
+
+    public int add(List<Double> pt, String label) {
+        assert (pt.size() == dim);
+        ensureCapacity(size + 1);
+        int off = size * dim;
+        for (int i = 0; i < dim; i++) {
+            coords[off + i] = pt.get(i);
+        }
+        labelIds[size] = internLabel(label);
+        return size++;
+    }
+
+    /**
+     * Appends every example of other, which must have the same dimension
+     */
+    public void addAll(TrainingSet other) {
+        assert (other.dim == dim);
+        int[] ids = new int[other.labelNames.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = internLabel(other.labelNames.get(i));
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.coords, 0, coords, size * dim, other.size * dim);
+        for (int row = 0; row < other.size; row++) {
+            labelIds[size + row] = ids[other.labelIds[row]];
+        }
+        size += other.size;
+    }
+
+    /**
+     * @return an independent copy of the set
+     */
+    public TrainingSet copy() {
+        return new TrainingSet(dim, size, coords.clone(), labelIds.clone(), labelNames);
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= labelIds.length) {
+            return;
+        }
+        int capacity = Math.max(rows, labelIds.length * 2);
+        double[] newCoords = new double[capacity * dim];
+        System.arraycopy(coords, 0, newCoords, 0, size * dim);
+        coords = newCoords;
+        int[] newIds = new int[capacity];
+        System.arraycopy(labelIds, 0, newIds, 0, size);
+        labelIds = newIds;
+    }
+
+    /**
+     * @return the backing row-major coordinate array, only the first
+     *         size()*getDim() entries are valid
+     */
+    public double[] getCoords() {
+        return coords;
+    }
+
+    /**
+     * @return the backing label id column, only the first size() entries
+     *         are valid
+     */
+    public int[] getLabelIds() {
+        return labelIds;
+    }
+
+    public int getLabelId(int row) {
+        return labelIds[row];
+    }
+
+    public String getLabel(int row) {
+        return labelNames.get(labelIds[row]);
+    }
+
+    public double get(int row, int d) {
+        return coords[row * dim + d];
+    }
+
+    /**
+     * @return a copy of the coordinates stored in the given row
+     */
+    public double[] getRow(int row) {
+        double[] pt = new double[dim];
+        System.arraycopy(coords, row * dim, pt, 0, dim);
+        return pt;
+    }
+
+    /**
+     * @return the squared euclidean distance between the given row and pt
+     */
+    public double distanceSq(int row, double[] pt) {
+        return DistanceKernels.distanceSq(coords, row * dim, pt, dim);
+    }
+
+    /**
+     * Same as distanceSq, but may stop summing once the partial sum reaches
+     * bound, in which case some value >= bound is returned
+     */
+    public double distanceSq(int row, double[] pt, double bound) {
+        return DistanceKernels.distanceSq(coords, row * dim, pt, dim, bound);
+    }
+
+    public double distance(int row, double[] pt) {
+        return Math.sqrt(distanceSq(row, pt));
+    }
+
+    public void scan(double[] pt, NeighborHeap nearest, int start, int end) {
+        for (int row = start; row < end; row++) {
+            if (!nearest.accepts(row)) {
+                continue;
+            }
+            double bound = nearest.bound();
+            double distSq = distanceSq(row, pt, bound);
+            if (distSq < bound) {
+                nearest.offer(row, distSq);
+            }
+        }
+    }
+}
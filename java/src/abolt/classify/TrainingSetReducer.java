@@ -0,0 +1,367 @@
+package abolt.classify;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import abolt.classify.Features.FeatureCategory;
+import abolt.util.ParallelUtil;
+import april.util.GetOpt;
+
+/**
+ * @purpose Shrinks a training set by dropping redundant examples, while
+ *          keeping the leave-one-out accuracy of the category's KNN within
+ *          a tolerance of the full set's. Three steps:
+ *            1. Wilson editing drops examples whose editK nearest
+ *               neighbours mostly have another label (noise and overlap)
+ *            2. Hart's condensing keeps only the examples needed for 1-NN
+ *               to classify every remaining example correctly
+ *            3. Repair adds back examples the reduced KNN gets wrong but
+ *               the full one got right until the accuracy is in tolerance
+ *          Condensing adds every example it misclassifies in a pass at
+ *          once, so each pass (and every accuracy check) is split across
+ *          cores.
+ *
+ *          The accuracy of a reduced set is measured on every example of
+ *          the full set, leaving an example out if it was kept (like
+ *          KNN.LOOCV), so it can be compared with the full set's LOOCV.
+ *          Unlike LOOCV, an "unknown" label counts as a mistake, so that a
+ *          sparser set cannot look better by refusing to answer.
+ */
+public class TrainingSetReducer {
+    private final FeatureCategory cat;
+    private final TrainingSet examples;
+    private final int n;
+
+    // Full set classifier and whether it got each example right
+    private KNN full;
+    private boolean[] fullCorrect;
+    private double fullAccuracy;
+
+    public TrainingSetReducer(FeatureCategory cat, TrainingSet examples) {
+        this.cat = cat;
+        this.examples = examples;
+        this.n = examples.size();
+    }
+
+    /**
+     * @param tolerance how much lower than the full set's the reduced set's
+     *                  accuracy may be
+     * @param editK neighbours that vote in Wilson editing, 0 to skip editing
+     * @return the indices of the examples to keep, in their original order
+     */
+    public int[] reduce(double tolerance, int editK) {
+        full = createKNN(identity());
+        fullCorrect = evaluate(full, identity());
+        fullAccuracy = accuracy(fullCorrect);
+        System.out.printf("full: %d examples, accuracy %.4f\n", n, fullAccuracy);
+
+        boolean[] kept = new boolean[n];
+        if (editK > 0) {
+            kept = edit(editK);
+            System.out.printf("edited: %d examples\n", count(kept));
+        } else {
+            for (int i = 0; i < n; i++) {
+                kept[i] = true;
+            }
+        }
+
+        boolean[] store = condense(kept);
+        System.out.printf("condensed: %d examples\n", count(store));
+
+        repair(store, tolerance);
+        return indices(store);
+    }
+
+    public double getFullAccuracy() {
+        return fullAccuracy;
+    }
+
+    /**
+     * Wilson editing, in parallel
+     * @return which examples agree with the majority of their editK nearest
+     *         neighbours in the full set
+     */
+    private boolean[] edit(final int editK) {
+        final boolean[] kept = new boolean[n];
+        // ShapeKNN stores several rows per example
+        final int rowsPerExample = full.getData().size() / Math.max(1, n);
+        int[] bounds = ParallelUtil.split(n, 64);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int b = 0; b + 1 < bounds.length; b++) {
+            final int start = bounds[b];
+            final int end = bounds[b + 1];
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    ITrainingData data = full.getData();
+                    int[] tallies = new int[data.numLabels()];
+                    for (int i = start; i < end; i++) {
+                        // Leave out every row of the example itself
+                        int[] nearest = full.getSortedNeighbors(editK + rowsPerExample, examples.getRow(i),
+                                                                Double.POSITIVE_INFINITY);
+                        int voters = 0;
+                        for (int row : nearest) {
+                            if (row / rowsPerExample != i && voters < editK) {
+                                tallies[data.getLabelId(row)]++;
+                                voters++;
+                            }
+                        }
+                        int own = data.getLabelId(examples.getLabel(i));
+                        int best = own;
+                        for (int id = 0; id < tallies.length; id++) {
+                            if (tallies[id] > tallies[best]) {
+                                best = id;
+                            }
+                        }
+                        kept[i] = (best == own);
+                        for (int id = 0; id < tallies.length; id++) {
+                            tallies[id] = 0;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        ParallelUtil.invokeAll(tasks);
+        return kept;
+    }
+
+    /**
+     * Hart's condensed nearest neighbour over the kept examples, seeded with
+     * the first example of each label
+     * @return which examples are in the condensed set
+     */
+    private boolean[] condense(final boolean[] kept) {
+        final boolean[] store = new boolean[n];
+        boolean[] seeded = new boolean[examples.numLabels()];
+        for (int i = 0; i < n; i++) {
+            int id = examples.getLabelId(i);
+            if (kept[i] && !seeded[id]) {
+                seeded[id] = true;
+                store[i] = true;
+            }
+        }
+
+        while (true) {
+            final KNN knn = createKNN(indices(store));
+            final boolean[] missed = new boolean[n];
+            int[] bounds = ParallelUtil.split(n, 64);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int b = 0; b + 1 < bounds.length; b++) {
+                final int start = bounds[b];
+                final int end = bounds[b + 1];
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = start; i < end; i++) {
+                            if (kept[i] && !store[i]) {
+                                int[] nearest = knn.getSortedNeighbors(1, examples.getRow(i),
+                                                                       Double.POSITIVE_INFINITY);
+                                missed[i] = (nearest.length == 0
+                                             || !knn.getData().getLabel(nearest[0]).equals(examples.getLabel(i)));
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            ParallelUtil.invokeAll(tasks);
+
+            int added = 0;
+            for (int i = 0; i < n; i++) {
+                if (missed[i]) {
+                    store[i] = true;
+                    added++;
+                }
+            }
+            if (added == 0) {
+                return store;
+            }
+        }
+    }
+
+    /**
+     * Adds back the examples that the reduced set misclassifies but the full
+     * set got right, until the accuracy is within tolerance. A kept example
+     * that is misclassified gets its nearest dropped example of the same
+     * label back instead.
+     */
+    private void repair(boolean[] store, double tolerance) {
+        while (true) {
+            boolean[] correct = evaluate(createKNN(indices(store)), indices(store));
+            double acc = accuracy(correct);
+            if (acc >= fullAccuracy - tolerance) {
+                System.out.printf("reduced: %d examples, accuracy %.4f\n", count(store), acc);
+                return;
+            }
+            boolean[] add = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                if (!correct[i] && fullCorrect[i]) {
+                    int j = (store[i] ? nearestDropped(i, store) : i);
+                    if (j >= 0) {
+                        add[j] = true;
+                    }
+                }
+            }
+            int added = 0;
+            for (int i = 0; i < n; i++) {
+                if (add[i]) {
+                    store[i] = true;
+                    added++;
+                }
+            }
+            System.out.printf("repaired: %d examples, accuracy %.4f, adding %d\n", count(store), acc, added);
+            if (added == 0) {
+                System.err.println("WRN: Could not reach the tolerance, keeping " + count(store) + " examples");
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the closest example to i with the same label that is not in
+     *         the store, or -1 if there is none
+     */
+    private int nearestDropped(int i, boolean[] store) {
+        double[] pt = examples.getRow(i);
+        int label = examples.getLabelId(i);
+        int best = -1;
+        double bestDistSq = Double.MAX_VALUE;
+        for (int j = 0; j < n; j++) {
+            if (!store[j] && examples.getLabelId(j) == label) {
+                double distSq = examples.distanceSq(j, pt, bestDistSq);
+                if (distSq < bestDistSq) {
+                    best = j;
+                    bestDistSq = distSq;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Classifies every example with knn, leaving the ones knn was built
+     * from out of their own query, in parallel
+     * @param members the examples knn holds, in the order they were added
+     * @return whether each example got its own label
+     */
+    private boolean[] evaluate(final KNN knn, int[] members) {
+        // Row of the first (unflipped) copy of each member in knn
+        final int[] memberRow = new int[n];
+        for (int i = 0; i < n; i++) {
+            memberRow[i] = -1;
+        }
+        final int rowsPerExample = knn.getRowsPerExample();
+        for (int m = 0; m < members.length; m++) {
+            memberRow[members[m]] = m * rowsPerExample;
+        }
+
+        final boolean[] correct = new boolean[n];
+        int[] bounds = ParallelUtil.split(n, 64);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int b = 0; b + 1 < bounds.length; b++) {
+            final int start = bounds[b];
+            final int end = bounds[b + 1];
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int i = start; i < end; i++) {
+                        ConfidenceLabel cl = (memberRow[i] >= 0 ? knn.classifyExcluding(memberRow[i], rowsPerExample)
+                                              : knn.classify(examples.getRow(i)));
+                        correct[i] = cl.getLabel().equals(examples.getLabel(i));
+                    }
+                    return null;
+                }
+            });
+        }
+        ParallelUtil.invokeAll(tasks);
+        return correct;
+    }
+
+    private KNN createKNN(int[] members) {
+        KNN knn = ClassifierManager.createKNN(cat, null);
+        for (int i : members) {
+            knn.add(examples.getRow(i), examples.getLabel(i));
+        }
+        return knn;
+    }
+
+    private int[] identity() {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    private static int[] indices(boolean[] selected) {
+        int[] idx = new int[count(selected)];
+        int j = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) {
+                idx[j++] = i;
+            }
+        }
+        return idx;
+    }
+
+    private static int count(boolean[] flags) {
+        int c = 0;
+        for (boolean f : flags) {
+            c += (f ? 1 : 0);
+        }
+        return c;
+    }
+
+    private static double accuracy(boolean[] correct) {
+        return (correct.length == 0 ? 0 : ((double) count(correct)) / correct.length);
+    }
+
+    public static void main(String[] args) {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('i', "infile", null, "Training data (.dat) file");
+        opts.addString('o', "outfile", null, "Reduced training data file, defaults to <infile>_reduced.dat");
+        opts.addString('t', "type", "color", "Type of features in the file: {color, shape, size}");
+        opts.addDouble('e', "tolerance", 0.005, "Accuracy the reduced set may lose");
+        opts.addInt('k', "edit-k", 3, "Neighbours that vote in Wilson editing, 0 to skip editing");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: " + opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help") || opts.getString("infile") == null) {
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        String infile = opts.getString("infile");
+        String outfile = opts.getString("outfile");
+        if (outfile == null) {
+            outfile = (infile.endsWith(".dat") ? infile.substring(0, infile.length() - 4) : infile) + "_reduced.dat";
+        }
+        FeatureCategory cat = FeatureCategory.valueOf(opts.getString("type").toUpperCase());
+
+        try {
+            TrainingSet examples = TrainingSet.load(infile, ClassifierManager.getDimensions(cat));
+            long start = System.currentTimeMillis();
+            int[] kept = new TrainingSetReducer(cat, examples).reduce(opts.getDouble("tolerance"),
+                                                                      opts.getInt("edit-k"));
+            long end = System.currentTimeMillis();
+
+            PrintWriter pw = new PrintWriter(new FileWriter(outfile));
+            for (int i : kept) {
+                pw.println(FEUtil.toDataLine(examples.getRow(i), examples.getLabel(i)));
+            }
+            pw.close();
+            System.out.printf("Wrote %d of %d examples to %s (%d ms on %d threads)\n", kept.length,
+                              examples.size(), outfile, end - start, ParallelUtil.getNumThreads());
+        } catch (IOException ex) {
+            System.err.println("ERR: " + ex);
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package abolt.classify;
+
+import java.util.Random;
+
+/**
+ * @purpose A vantage-point tree over the rows of an ITrainingData. Each node
+ *          picks a vantage row and splits the rest at the median distance
+ *          from it; the triangle inequality then prunes whole shells of
+ *          rows. Unlike the KDTree it does not degrade with dimension, so it
+ *          is the better choice for the 15 dimensional shape space.
+ */
+public class VPTree implements INeighborIndex {
+    private static final int LEAF_SIZE = 8;
+
+    private int size = 0;
+    // Rows reordered so that every node owns the range [start, end)
+    private int[] perm = new int[0];
+    // Scratch distances used while building
+    private double[] dists;
+
+    private int numNodes;
+    private int[] nodeStart, nodeEnd, nodeInside, nodeOutside;
+    private double[] nodeRadius;
+
+    @Override
+    public void build(ITrainingData data) {
+        size = data.size();
+        perm = new int[size];
+        for (int i = 0; i < size; i++) {
+            perm[i] = i;
+        }
+        dists = new double[size];
+
+        // Leaves hold at least LEAF_SIZE/2 rows, so there are at most size/2 nodes
+        int maxNodes = size / 2 + 2;
+        nodeStart = new int[maxNodes];
+        nodeEnd = new int[maxNodes];
+        nodeInside = new int[maxNodes];
+        nodeOutside = new int[maxNodes];
+        nodeRadius = new double[maxNodes];
+        numNodes = 0;
+        if (size > 0) {
+            // Seeded per build so that the same data always gives the same tree
+            buildNode(data, 0, size, new Random(0));
+        }
+        dists = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int buildNode(ITrainingData data, int start, int end, Random rand) {
+        int node = numNodes++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeInside[node] = -1;
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        // The vantage point lives at perm[start], the rest are split around it
+        swap(start, start + rand.nextInt(end - start));
+        double[] vp = data.getRow(perm[start]);
+        for (int i = start + 1; i < end; i++) {
+            dists[i] = data.distance(perm[i], vp);
+        }
+
+        int mid = (start + 1 + end) / 2;
+        select(start + 1, end, mid);
+        nodeRadius[node] = dists[mid];
+        nodeInside[node] = buildNode(data, start + 1, mid, rand);
+        nodeOutside[node] = buildNode(data, mid, end, rand);
+        return node;
+    }
+
+    private void swap(int i, int j) {
+        int tmp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = tmp;
+        double d = dists[i];
+        dists[i] = dists[j];
+        dists[j] = d;
+    }
+
+    // Quickselect on the scratch distances, keeping perm aligned with them
+    private void select(int start, int end, int k) {
+        int lo = start, hi = end - 1;
+        while (lo < hi) {
+            double pivot = dists[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (dists[i] < pivot) i++;
+                while (dists[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void search(ITrainingData data, double[] query, NeighborHeap nearest) {
+        if (numNodes > 0) {
+            search(0, data, query, nearest);
+        }
+    }
+
+    private void search(int node, ITrainingData data, double[] query, NeighborHeap nearest) {
+        if (nodeInside[node] < 0) {
+            for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                nearest.offer(perm[i], data.distanceSq(perm[i], query));
+            }
+            return;
+        }
+
+        int vp = perm[nodeStart[node]];
+        double distSq = data.distanceSq(vp, query);
+        nearest.offer(vp, distSq);
+        double d = Math.sqrt(distSq);
+        double mu = nodeRadius[node];
+
+        // Everything inside is at most mu from vp and everything outside is
+        // at least mu, so by the triangle inequality a shell can only hold a
+        // neighbour if it overlaps the ball of the current search radius
+        if (d < mu) {
+            search(nodeInside[node], data, query, nearest);
+            if (d + Math.sqrt(nearest.bound()) >= mu) {
+                search(nodeOutside[node], data, query, nearest);
+            }
+        } else {
+            search(nodeOutside[node], data, query, nearest);
+            if (d - Math.sqrt(nearest.bound()) <= mu) {
+                search(nodeInside[node], data, query, nearest);
+            }
+        }
+    }
+
+    @Override
+    public INeighborIndex create() {
+        return new VPTree();
+    }
+}
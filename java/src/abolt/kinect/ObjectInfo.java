@@ -4,7 +4,13 @@ import april.vis.*;
 import april.jmat.*;
 import april.util.UnionFindSimple;
 
+import abolt.classify.BinaryMask;
+import abolt.classify.ColorFeatureExtractor;
+import abolt.classify.FEUtil;
 import abolt.classify.Features;
+import abolt.classify.PCA;
+import abolt.classify.ShapeFeatureExtractor;
+import abolt.classify.SizeFeatureExtractor;
 import abolt.classify.Features.FeatureCategory;
 import abolt.lcmtypes.*;
 import lcm.lcm.*;
@@ -34,14 +40,43 @@ public class ObjectInfo{
     public Rectangle projBBox = null;
 
     public ArrayList<double[]> points;
-    private HashMap<FeatureCategory, ArrayList<Double> > features;
+    private HashMap<FeatureCategory, double[]> features;
+    private double[] colorStatistics = null;
+
+    // Running sums kept as points are added, so that the size and color
+    // features need no pass of their own: the [xmin, ymin, zmin, xmax,
+    // ymax, zmax] bounding box and the color sums
+    private double[] bounds;
+    private ColorFeatureExtractor.ColorAccumulator colorSums;
+
+    // The image pixel of each point, [x0, y0, x1, y1, ...], and their
+    // [xmin, ymin, xmax, ymax]; the shape mask and the projected bounding
+    // box are drawn from these
+    private int[] pixels;
+    private int numPixels;
+    private int[] pixelBounds;
+
+    // Empty border around the object in its image and mask
+    private final static int MARGIN = 5;
 
     public ObjectInfo(){
-    	features = new HashMap<FeatureCategory, ArrayList<Double> >();
+    	features = new HashMap<FeatureCategory, double[]>();
     }
 
     /** Create a new object with info about it. Objects begin with a single point.**/
     public ObjectInfo(int color, int id, double[] point)
+    {
+        this(color, id, point, projectPixel(point));
+    }
+
+    /** Create a new object from a point seen at image pixel (pixelX, pixelY),
+        which is where KUtils.getPixel projects it. **/
+    public ObjectInfo(int color, int id, double[] point, int pixelX, int pixelY)
+    {
+        this(color, id, point, new int[]{pixelX, pixelY});
+    }
+
+    private ObjectInfo(int color, int id, double[] point, int[] pixel)
     {
         Random r = new Random();
         this.repID = r.nextInt();
@@ -56,16 +91,63 @@ public class ObjectInfo{
         this.lowermost = point[1];
         this.matched = false;
         sumPoints = new double[]{point[0], point[1], point[2]};
-        Color c = new Color((int) point[3]);
-        sumColor = new int[]{c.getRed(), c.getBlue(), c.getGreen()};
+        int c = (int) point[3];
+        sumColor = new int[]{(c >> 16) & 0xff, c & 0xff, (c >> 8) & 0xff};
+        bounds = new double[]{point[0], point[1], point[2], point[0], point[1], point[2]};
+        colorSums = new ColorFeatureExtractor.ColorAccumulator();
+        accumulate(point);
+        pixels = new int[64];
+        pixelBounds = new int[]{pixel[0], pixel[1], pixel[0], pixel[1]};
+        addPixel(pixel[0], pixel[1]);
 
         this.points = new ArrayList<double[]>();
         this.points.add(point);
-    	features = new HashMap<FeatureCategory, ArrayList<Double> >();
+    	features = new HashMap<FeatureCategory, double[]>();
+    }
+
+    /** The image pixel KUtils.getPixel projects the point to, rounded. **/
+    private static int[] projectPixel(double[] point){
+        double[] pixel = KUtils.getPixel(point);
+        return new int[]{(int)Math.round(pixel[0]), (int)Math.round(pixel[1])};
+    }
+
+    private void addPixel(int x, int y){
+        if(2*numPixels == pixels.length){
+            int[] grown = new int[2*pixels.length];
+            System.arraycopy(pixels, 0, grown, 0, pixels.length);
+            pixels = grown;
+        }
+        pixels[2*numPixels] = x;
+        pixels[2*numPixels+1] = y;
+        numPixels++;
+        if(x < pixelBounds[0])
+            pixelBounds[0] = x;
+        if(y < pixelBounds[1])
+            pixelBounds[1] = y;
+        if(x > pixelBounds[2])
+            pixelBounds[2] = x;
+        if(y > pixelBounds[3])
+            pixelBounds[3] = y;
+    }
+
+    private void accumulate(double[] point){
+        for(int i = 0; i < 3; i++){
+            if(point[i] < bounds[i])
+                bounds[i] = point[i];
+            if(point[i] > bounds[3+i])
+                bounds[3+i] = point[i];
+        }
+        colorSums.add((int) point[3]);
     }
 
     /** Add a new point to this object. **/
     public void update(double[] point){
+        int[] pixel = projectPixel(point);
+        update(point, pixel[0], pixel[1]);
+    }
+
+    /** Add a new point seen at image pixel (pixelX, pixelY). **/
+    public void update(double[] point, int pixelX, int pixelY){
         if(this.leftmost > point[0])
             this.leftmost = point[0];
         if(this.rightmost < point[0])
@@ -79,24 +161,71 @@ public class ObjectInfo{
         for(int i=0; i<sumPoints.length; i++){
             sumPoints[i] += point[i];
         }
-        Color c = new Color((int)point[3]);
-        sumColor[0] += c.getRed();
-        sumColor[1] += c.getBlue();
-        sumColor[2] += c.getGreen();
+        int c = (int) point[3];
+        sumColor[0] += (c >> 16) & 0xff;
+        sumColor[1] += c & 0xff;
+        sumColor[2] += (c >> 8) & 0xff;
+        accumulate(point);
+        addPixel(pixelX, pixelY);
 
         this.points.add(point);
     }
+
+    /** Whether the running sums cover every point, which they do not if
+        points were added to the list directly. **/
+    private boolean isAccumulated(){
+        return (colorSums != null && points != null && colorSums.getCount() == points.size());
+    }
+
+    /** Whether there is a pixel for every point. **/
+    private boolean hasPixels(){
+        return (pixels != null && points != null && numPixels == points.size());
+    }
     
-    public ArrayList<Double> getFeatures(FeatureCategory cat){
+    /** Get the features of the given category, extracted once and cached.
+        Callers must not modify the array. **/
+    public double[] getFeatureArray(FeatureCategory cat){
     	if(features.containsKey(cat)){
     		return features.get(cat);
     	} else {
-    		ArrayList<Double> fts = Features.getFeatures(cat, points);
+    		double[] fts;
+    		if(cat == FeatureCategory.COLOR){
+    			fts = ColorFeatureExtractor.getFeatureArray(getColorStatistics());
+    		} else if(cat == FeatureCategory.SIZE && isAccumulated()){
+    			fts = SizeFeatureExtractor.getFeatureArray(bounds, sumPoints, points);
+    		} else if(cat == FeatureCategory.SHAPE && hasPixels()){
+    			BinaryMask mask = getMask();
+    			try {
+    				fts = ShapeFeatureExtractor.getFeatureArray(mask);
+    			} finally {
+    				mask.release();
+    			}
+    		} else {
+    			fts = Features.getFeatureArray(cat, points);
+    		}
     		features.put(cat, fts);
     		return fts;
     	}
     }
 
+    /** Get the averages and variances of the colors of the object (see
+        ColorFeatureExtractor.getStatistics), found once and cached. The
+        color features and the dark object check both come from these.
+        Callers must not modify the array. **/
+    public double[] getColorStatistics(){
+    	if(colorStatistics == null){
+    		colorStatistics = (isAccumulated() ? colorSums.getStatistics()
+    		                   : ColorFeatureExtractor.getStatistics(points));
+    	}
+    	return colorStatistics;
+    }
+
+    /** Boxed copy of getFeatureArray, for older callers. **/
+    public ArrayList<Double> getFeatures(FeatureCategory cat){
+    	double[] fts = getFeatureArray(cat);
+    	return (fts == null ? null : FEUtil.toList(fts));
+    }
+
     /** Get the center of the object (mean x, y,z). **/
     public double[] getCenter()
     {
@@ -153,48 +282,223 @@ public class ObjectInfo{
         color = newColor;
     }
 
+    /** The rounded pixels of the points, as stored in pixels. **/
+    private static int[] projectPixels(ArrayList<double[]> points){
+        int[] pixels = new int[2*points.size()];
+        for(int i = 0; i < points.size(); i++){
+            double[] pixel = KUtils.getPixel(points.get(i));
+            pixels[2*i] = (int)Math.round(pixel[0]);
+            pixels[2*i+1] = (int)Math.round(pixel[1]);
+        }
+        return pixels;
+    }
+
+    private static int[] getPixelBounds(int[] pixels, int n){
+        int[] bounds = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for(int i = 0; i < n; i++){
+            bounds[0] = Math.min(bounds[0], pixels[2*i]);
+            bounds[1] = Math.min(bounds[1], pixels[2*i+1]);
+            bounds[2] = Math.max(bounds[2], pixels[2*i]);
+            bounds[3] = Math.max(bounds[3], pixels[2*i+1]);
+        }
+        return bounds;
+    }
+
+    private static void setProjectedBBox(Rectangle projBBox, int[] bounds){
+        projBBox.setBounds(bounds[0] - MARGIN, bounds[1] - MARGIN,
+                           bounds[2] - bounds[0] + 1 + MARGIN*2, bounds[3] - bounds[1] + 1 + MARGIN*2);
+    }
+
+    /** The mask of the object's image: a pixel is set if the point drawn
+        there last has a valid color (see PCA.isValidPixel). **/
+    private static BinaryMask getMask(ArrayList<double[]> points, int[] pixels, int[] bounds){
+        int minX = bounds[0] - MARGIN, minY = bounds[1] - MARGIN;
+        BinaryMask mask = BinaryMask.obtain(bounds[2] - minX + 1 + MARGIN, bounds[3] - minY + 1 + MARGIN);
+        for(int i = 0; i < points.size(); i++){
+            int x = pixels[2*i] - minX, y = pixels[2*i+1] - minY;
+            if(PCA.isValidPixel((int)points.get(i)[3])){
+                mask.set(x, y);
+            } else {
+                mask.clear(x, y);
+            }
+        }
+        return mask;
+    }
+
+    /** The object's image: each point in its pixel, with margin blank pixels
+        around them. **/
+    private static BufferedImage getImage(ArrayList<double[]> points, int[] pixels, int[] bounds){
+        int minX = bounds[0] - MARGIN, minY = bounds[1] - MARGIN;
+        int width = bounds[2] - minX + 1 + MARGIN;
+        BufferedImage image = new BufferedImage(width, bounds[3] - minY + 1 + MARGIN, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        for(int i = 0; i < points.size(); i++){
+            int off = 3*((pixels[2*i+1] - minY)*width + pixels[2*i] - minX);
+            // Points are BGR, the bytes are written in the order they are stored
+            int c = (int)points.get(i)[3];
+            data[off] = (byte)(c >> 16);
+            data[off+1] = (byte)(c >> 8);
+            data[off+2] = (byte)c;
+        }
+        return image;
+    }
+
+    /** Get the mask of the object's pixels that the shape features are
+        computed from, the valid pixels of getImage(points, null). The caller
+        must release it. **/
+    public static BinaryMask getMask(ArrayList<double[]> points){
+        int[] pixels = projectPixels(points);
+        return getMask(points, pixels, getPixelBounds(pixels, points.size()));
+    }
+
+    /** Get the mask of this object's pixels, the valid pixels of getImage().
+        The caller must release it. **/
+    public BinaryMask getMask(){
+        if(!hasPixels()){
+            return getMask(points);
+        }
+        return getMask(points, pixels, pixelBounds);
+    }
+
     public static BufferedImage getImage(ArrayList<double[]> points, Rectangle projBBox){
-    	BufferedImage image;
-		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
-		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
-		for(double[] pt : points){
-			double[] pixel = KUtils.getPixel(pt);
-			minX = (pixel[0] < minX ? (int)Math.round(pixel[0]) : minX);
-			maxX = (pixel[0] > maxX ? (int)Math.round(pixel[0]) : maxX);
-			minY = (pixel[1] < minY ? (int)Math.round(pixel[1]) : minY);
-			maxY = (pixel[1] > maxY ? (int)Math.round(pixel[1]) : maxY);
-		}
-		int margin = 5;
-		if(projBBox != null){
-			projBBox.setBounds(minX - margin, minY - margin, maxX - minX + 1 + margin*2, maxY - minY + 1 + margin*2);
-		}
-		image = new BufferedImage((maxX - minX + 1) + 2*margin, (maxY - minY + 1) + 2*margin, BufferedImage.TYPE_3BYTE_BGR);
-		for(int i = 0; i < points.size(); i++){
-			double[] pixel = KUtils.getPixel(points.get(i));
-			try{
-				Color c =  new Color((int)points.get(i)[3]);
-				Color rc = new Color(c.getBlue(), c.getGreen(), c.getRed());
-    			image.setRGB((int)Math.round(pixel[0])+margin-minX, (int)Math.round(pixel[1])+margin-minY, rc.getRGB());
-			} catch (Exception e){
-				//System.out.println("Out of Bounds pixel in ObjectInfo: " + pixel[0] + ", " + pixel[1]);
-				//System.out.println(points.get(i)[0] + ", " + points.get(i)[1] + ", " + points.get(i)[2]);
-			}
-		}
-    	return image;
+        int[] pixels = projectPixels(points);
+        int[] bounds = getPixelBounds(pixels, points.size());
+        if(projBBox != null){
+            setProjectedBBox(projBBox, bounds);
+        }
+        return getImage(points, pixels, bounds);
     }
 
     public Rectangle getProjectedBBox(){
     	if(projBBox == null){
-    		getImage();
+    		if(hasPixels()){
+    			projBBox = new Rectangle();
+    			setProjectedBBox(projBBox, pixelBounds);
+    		} else {
+    			getImage();
+    		}
     	}
     	return projBBox;
     }
 
+    /** Get the object's image, which is only made when something draws it;
+        the features come from getMask(). **/
     public BufferedImage getImage(){
     	if(image == null){
-    		projBBox = new Rectangle();
-    		image = getImage(points, projBBox);
+    		if(hasPixels()){
+    			if(projBBox == null){
+    				projBBox = new Rectangle();
+    				setProjectedBBox(projBBox, pixelBounds);
+    			}
+    			image = getImage(points, pixels, pixelBounds);
+    		} else {
+    			projBBox = new Rectangle();
+    			image = getImage(points, projBBox);
+    		}
     	}
     	return image;
     }
+
+    /** The image getImage(points, projBBox) drew before the pixels were
+        kept: each point projected twice and drawn with setRGB. **/
+    private static BufferedImage getImageWithSetRGB(ArrayList<double[]> points, Rectangle projBBox){
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for(double[] pt : points){
+            double[] pixel = KUtils.getPixel(pt);
+            minX = (pixel[0] < minX ? (int)Math.round(pixel[0]) : minX);
+            maxX = (pixel[0] > maxX ? (int)Math.round(pixel[0]) : maxX);
+            minY = (pixel[1] < minY ? (int)Math.round(pixel[1]) : minY);
+            maxY = (pixel[1] > maxY ? (int)Math.round(pixel[1]) : maxY);
+        }
+        projBBox.setBounds(minX - MARGIN, minY - MARGIN, maxX - minX + 1 + MARGIN*2, maxY - minY + 1 + MARGIN*2);
+        BufferedImage image = new BufferedImage((maxX - minX + 1) + 2*MARGIN, (maxY - minY + 1) + 2*MARGIN,
+                                                BufferedImage.TYPE_3BYTE_BGR);
+        for(double[] pt : points){
+            double[] pixel = KUtils.getPixel(pt);
+            Color c = new Color((int)pt[3]);
+            Color rc = new Color(c.getBlue(), c.getGreen(), c.getRed());
+            image.setRGB((int)Math.round(pixel[0]) + MARGIN - minX, (int)Math.round(pixel[1]) + MARGIN - minY, rc.getRGB());
+        }
+        return image;
+    }
+
+    private static boolean sameImage(BufferedImage a, BufferedImage b){
+        if(a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()){
+            return false;
+        }
+        for(int y = 0; y < a.getHeight(); y++){
+            for(int x = 0; x < a.getWidth(); x++){
+                if(a.getRGB(x, y) != b.getRGB(x, y)){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Builds random elliptical objects the way Segment does, a point per
+        pixel with a random depth and color, some of them too dark to be
+        part of the shape and some drawn over by a second point. Checks that
+        the features ObjectInfo derives from its running sums and pixel mask
+        are exactly the ones the extractors compute from the point list and
+        from the image as getImage used to draw it, and that getImage and
+        getProjectedBBox are unchanged. **/
+    public static void main(String[] args){
+        int numObjects = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+        Random rand = new Random(0);
+
+        int[] differing = new int[FeatureCategory.values().length];
+        int imagesDiffering = 0;
+        for(int n = 0; n < numObjects; n++){
+            int width = 380, height = 200;
+            double cx = 20 + rand.nextInt(width - 40), cy = 20 + rand.nextInt(height - 40);
+            double ra = 3 + rand.nextInt(40), rb = 3 + rand.nextInt(40);
+            double theta = rand.nextDouble()*Math.PI;
+
+            ArrayList<double[]> points = new ArrayList<double[]>();
+            ObjectInfo info = null;
+            for(int py = 0; py < height; py++){
+                for(int px = 0; px < width; px++){
+                    double u = (px - cx)*Math.cos(theta) + (py - cy)*Math.sin(theta);
+                    double v = -(px - cx)*Math.sin(theta) + (py - cy)*Math.cos(theta);
+                    if(u*u/(ra*ra) + v*v/(rb*rb) > 1){
+                        continue;
+                    }
+                    int drawn = (rand.nextInt(20) == 0 ? 2 : 1);
+                    for(int k = 0; k < drawn; k++){
+                        double depth = (400 + rand.nextInt(2000))/1000.0;
+                        int c = (rand.nextInt(20) == 0 ? (rand.nextInt(2) << 16) | rand.nextInt(2)
+                                 : rand.nextInt(1 << 24));
+                        double[] pt = new double[]{(px - KUtils.Cirx)*depth/KUtils.Firx,
+                                                   (py - KUtils.Ciry)*depth/KUtils.Firy, depth, c};
+                        points.add(pt);
+                        if(info == null){
+                            info = new ObjectInfo(1, 1, pt, px, py);
+                        } else {
+                            info.update(pt, px, py);
+                        }
+                    }
+                }
+            }
+
+            Rectangle projBBox = new Rectangle();
+            BufferedImage image = getImageWithSetRGB(points, projBBox);
+            for(FeatureCategory cat : FeatureCategory.values()){
+                double[] expected = (cat == FeatureCategory.SHAPE ? ShapeFeatureExtractor.getFeatureArray(image)
+                                     : Features.getFeatureArray(cat, points));
+                if(!Arrays.equals(expected, info.getFeatureArray(cat))){
+                    differing[cat.ordinal()]++;
+                }
+            }
+            if(!projBBox.equals(info.getProjectedBBox()) || !sameImage(image, info.getImage())){
+                imagesDiffering++;
+            }
+        }
+
+        for(FeatureCategory cat : FeatureCategory.values()){
+            System.out.printf("%s: %d of %d objects differ\n", cat, differing[cat.ordinal()], numObjects);
+        }
+        System.out.printf("images or projected bounding boxes: %d of %d objects differ\n", imagesDiffering, numObjects);
+    }
 }
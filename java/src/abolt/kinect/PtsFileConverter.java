@@ -87,7 +87,7 @@ public class PtsFileConverter
                 }
                 bsr.blockEnd();
                 
-                ArrayList<Double> features = Features.getFeatures(type, points);
+                double[] features = Features.getFeatureArray(type, points);
                 String featureString = FEUtil.featuresToString(features);
                 
                 boolean hasLabel = false;
@@ -16,6 +16,8 @@ public class Segment
     final static double OBJECT_THRESH = 200;
     final static int MAX_HISTORY = 100;
     int width, height;
+    // The image pixel of the first point, points are in row-major order
+    int originX, originY;
 
     // Originally in data aggregator
     public HashMap<Integer, ObjectInfo> objects;           //map of all objects found in current frame to their data
@@ -40,6 +42,15 @@ public class Segment
 
     public Segment(int w, int h)
     {
+        this(0, 0, w, h);
+    }
+
+    /** Segment frames of the w x h region of the image starting at pixel
+        (x, y). **/
+    public Segment(int x, int y, int w, int h)
+    {
+        originX = x;
+        originY = y;
         width = w;
         height = h;
         floorPlane = new double[4];
@@ -115,15 +126,17 @@ public class Segment
 
                 if(ufs.getSetSize(i) > OBJECT_THRESH){
                     int repID = ufs.getRepresentative(i);
+                    int pixelX = originX + i%width;
+                    int pixelY = originY + i/width;
                     Object repColor = map.get(repID);
                     if(repColor != null){
                         info = (ObjectInfo)objects.get(repID);
-                        info.update(point);
+                        info.update(point, pixelX, pixelY);
                     }
                     else{
                         int color = colors[i%colors.length];
                         map.put(repID, color);
-                        info = new ObjectInfo(color, repID, point);
+                        info = new ObjectInfo(color, repID, point, pixelX, pixelY);
                         objects.put(repID, info);
                     }
                     Integer color = map.get(repID);
@@ -15,6 +15,7 @@ import april.util.StructureWriter;
 import april.util.TimeUtil;
 import april.vis.VisObject;
 
+import abolt.classify.FEUtil;
 import abolt.classify.Features.FeatureCategory;
 import abolt.kinect.ObjectInfo;
 import abolt.lcmtypes.object_data_t;
@@ -81,7 +82,19 @@ public abstract class BoltObject implements SimObject{
 		return data;
 	}
 	
-	public abstract ArrayList<Double> getFeatures(FeatureCategory cat);
+	/**
+	 * @return the features of the object for the category, or null if it
+	 *         has none
+	 */
+	public abstract double[] getFeatureArray(FeatureCategory cat);
+	
+	/**
+	 * Boxed copy of getFeatureArray, for older callers
+	 */
+	public ArrayList<Double> getFeatures(FeatureCategory cat){
+		double[] features = getFeatureArray(cat);
+		return (features == null ? null : FEUtil.toList(features));
+	}
 
 	public abstract Shape getShape();
 
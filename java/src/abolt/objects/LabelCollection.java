@@ -3,9 +3,7 @@ package abolt.objects;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 
 import abolt.classify.ConfidenceLabel;
 import abolt.classify.Features;
@@ -20,88 +18,167 @@ import abolt.lcmtypes.category_t;
  * as well as the current best (highest confidence) labels
  */
 public class LabelCollection {
-	private HashMap<FeatureCategory, Integer> queueSizes;
-	private HashMap<FeatureCategory, Queue<ConfidenceLabel>> labels;
-	private HashMap<FeatureCategory, ConfidenceLabel> bestLabels;
-	
-	public LabelCollection(){
-		labels = new HashMap<FeatureCategory, Queue<ConfidenceLabel> >();
-		bestLabels = new HashMap<FeatureCategory, ConfidenceLabel>();
-		for(FeatureCategory cat : FeatureCategory.values()){
-			labels.put(cat, new LinkedList<ConfidenceLabel>());
-			bestLabels.put(cat, new ConfidenceLabel(0, "unknown"));
+	/**
+	 * The last labels of one category in a ring buffer, with how often each
+	 * label occurs in it and the sum of their confidences kept up to date
+	 * as labels enter and leave, so an update does not rescan the window.
+	 * Labels are interned to ids.
+	 */
+	private static class LabelWindow {
+		final int[] ids;
+		final double[] confidences;
+		// Next slot to write, which holds the oldest label once full
+		int head = 0;
+		int count = 0;
+		double sum = 0;
+		
+		ArrayList<String> names = new ArrayList<String>();
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		// Occurrences of each label id in the window
+		int[] counts = new int[4];
+		// numWithCount[c] is the number of labels that occur c times
+		final int[] numWithCount;
+		int max = 0;
+		// Label id with max occurrences that occurs first, -1 if not known
+		int best = -1;
+		
+		volatile ConfidenceLabel bestLabel = new ConfidenceLabel(0, "unknown");
+		
+		LabelWindow(int size){
+			ids = new int[size];
+			confidences = new double[size];
+			numWithCount = new int[size + 1];
+		}
+		
+		int intern(String label){
+			Integer id = index.get(label);
+			if(id == null){
+				id = names.size();
+				names.add(label);
+				index.put(label, id);
+				if(id == counts.length){
+					int[] grown = new int[counts.length * 2];
+					System.arraycopy(counts, 0, grown, 0, counts.length);
+					counts = grown;
+				}
+			}
+			return id;
+		}
+		
+		void update(ConfidenceLabel newLabel){
+			int id = intern(newLabel.getLabel());
+			if(count == ids.length){
+				remove(ids[head]);
+				sum -= confidences[head];
+			} else {
+				count++;
+			}
+			ids[head] = id;
+			confidences[head] = newLabel.getConfidence();
+			sum += newLabel.getConfidence();
+			head = (head + 1) % ids.length;
+			add(id);
+			
+			if(head == 0){
+				// Start over from the stored confidences once per lap so that
+				// rounding errors do not build up
+				sum = 0;
+				for(int i = 0; i < count; i++){
+					sum += confidences[i];
+				}
+			}
+			if(best < 0){
+				best = firstWithMax();
+			}
+			
+			double confidence = sum/(double)count * (double)max/(double)count;
+			String label = names.get(best);
+			ConfidenceLabel current = bestLabel;
+			if(current.getConfidence() != confidence || !current.getLabel().equals(label)){
+				bestLabel = new ConfidenceLabel(confidence, label);
+			}
+		}
+		
+		private void add(int id){
+			int c = ++counts[id];
+			numWithCount[c - 1]--;
+			numWithCount[c]++;
+			if(c > max){
+				max = c;
+				best = id;
+			} else if(c == max && id != best){
+				// A tie, the label that occurs first wins
+				best = -1;
+			}
 		}
 		
-		queueSizes = new HashMap<FeatureCategory, Integer>();
-		queueSizes.put(FeatureCategory.COLOR, 10);
-		queueSizes.put(FeatureCategory.SHAPE, 15);
-		queueSizes.put(FeatureCategory.SIZE, 10);
+		private void remove(int id){
+			int c = counts[id]--;
+			numWithCount[c]--;
+			numWithCount[c - 1]++;
+			if(c == max){
+				if(id == best){
+					best = -1;
+				}
+				if(numWithCount[max] == 0){
+					max--;
+				}
+			}
+		}
+		
+		/**
+		 * @return the label with max occurrences whose oldest one is the
+		 *         oldest
+		 */
+		private int firstWithMax(){
+			int start = (head - count + ids.length) % ids.length;
+			for(int i = 0; i < count; i++){
+				int id = ids[(start + i) % ids.length];
+				if(counts[id] == max){
+					return id;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	private HashMap<FeatureCategory, LabelWindow> labels;
+	
+	public LabelCollection(){
+		labels = new HashMap<FeatureCategory, LabelWindow>();
+		labels.put(FeatureCategory.COLOR, new LabelWindow(10));
+		labels.put(FeatureCategory.SHAPE, new LabelWindow(15));
+		labels.put(FeatureCategory.SIZE, new LabelWindow(10));
 	}
 	
 	public categorized_data_t[] getCategorizedData(){
 		categorized_data_t[] data = new categorized_data_t[labels.size()];
 		int i = 0;
-		for(Map.Entry<FeatureCategory, ConfidenceLabel> entry : bestLabels.entrySet()){
+		for(Map.Entry<FeatureCategory, LabelWindow> entry : labels.entrySet()){
+			ConfidenceLabel best = entry.getValue().bestLabel;
 			categorized_data_t catDat = new categorized_data_t();
 			catDat.cat = new category_t();
 			catDat.cat.cat = Features.getLCMCategory(entry.getKey());
 			catDat.len = 1;
 			catDat.confidence = new double[1];
 			catDat.label = new String[1];
-			catDat.confidence[0] = entry.getValue().getConfidence();
-			catDat.label[0] = entry.getValue().getLabel();
+			catDat.confidence[0] = best.getConfidence();
+			catDat.label[0] = best.getLabel();
 			data[i++] = catDat;
 		}
 		return data;
 	}
 	
 	public ConfidenceLabel getBestLabel(FeatureCategory cat){
-		return bestLabels.get(cat);
+		return labels.get(cat).bestLabel;
 	}
 	
+	/**
+	 * Adds a label to the category's window. The best label is the one that
+	 * occurs most often in the window, with a confidence of the mean
+	 * confidence times the fraction of the window it fills.
+	 */
 	public void updateLabel(FeatureCategory cat, ConfidenceLabel newLabel){
-		Queue<ConfidenceLabel> labelQueue = labels.get(cat);
-		labelQueue.offer(newLabel);
-		if(labelQueue.size() > queueSizes.get(cat)){
-			labelQueue.remove();
-		}
-
-        double sum = 0;
-        int count = 0;
-        ArrayList<String> bestS = new ArrayList<String>();
-        ArrayList<Integer> bestCount = new ArrayList<Integer>();
-        int max = 0;
-        int max2 = 0;
-        int index;
-        for (ConfidenceLabel c : labelQueue)
-        {
-            String label = c.getLabel();
-
-            int cnt = 0;
-            if ((index = bestS.indexOf(label)) >= 0)
-            {
-                cnt = bestCount.get(index) + 1;
-                bestCount.set(index, cnt);
-            }
-            else
-            {
-                cnt = 1;
-                bestS.add(label);
-                bestCount.add(cnt);
-            }
-            if (cnt > max)
-            {
-                max = cnt;
-            }
-            sum+= c.getConfidence();
-            count++;
-        }
-        
-        double confidence = sum/(double)count * (double)max/(double)count;
-        //best label
-        if ((index = bestCount.indexOf(max)) >= 0)
-        {
-        	bestLabels.put(cat, new ConfidenceLabel(confidence, bestS.get(index)));
-        }
+		labels.get(cat).update(newLabel);
 	}
 }
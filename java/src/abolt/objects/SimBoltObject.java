@@ -29,12 +29,12 @@ public abstract class SimBoltObject extends BoltObject implements SimGrabbable
     protected VisObject model;
     protected Shape shape;
     
-    protected HashMap<FeatureCategory, ArrayList<Double>> features;
+    protected HashMap<FeatureCategory, double[]> features;
 
     public SimBoltObject(SimWorld sw)
     {
     	super(sw);
-        features = new HashMap<FeatureCategory, ArrayList<Double>>();
+        features = new HashMap<FeatureCategory, double[]>();
         sensingRange = .5;
         actionRange = .1;
     }
@@ -50,7 +50,7 @@ public abstract class SimBoltObject extends BoltObject implements SimGrabbable
     }
     
 	@Override
-	public ArrayList<Double> getFeatures(FeatureCategory cat) {
+	public double[] getFeatureArray(FeatureCategory cat) {
 		return features.get(cat);
 	}
 	
@@ -55,9 +55,7 @@ public class SimObjectManager implements IObjectManager {
 	private void updateObjects(){
 		synchronized(objects){
 			ClassifierManager cm = Bolt.getClassifierManager();
-			for(BoltObject obj : objects.values()){
-				cm.updateObject(obj);
-			}
+			cm.updateObjects(objects.values());
 		}
 	}
 }
@@ -35,8 +35,8 @@ public class WorldBoltObject extends BoltObject {
 	}
 
 	@Override
-	public ArrayList<Double> getFeatures(FeatureCategory cat) {
-		return info.getFeatures(cat);
+	public double[] getFeatureArray(FeatureCategory cat) {
+		return info.getFeatureArray(cat);
 	}
 
 	@Override
@@ -73,7 +73,7 @@ public class WorldBoltObject extends BoltObject {
         LinAlg.minusEquals(max, center);
         
         shape = new SphereShape(maxDim);
-        Color color = ColorFeatureExtractor.getColorFromFeatures(info.getFeatures(FeatureCategory.COLOR));
+        Color color = ColorFeatureExtractor.getColorFromFeatures(info.getFeatureArray(FeatureCategory.COLOR));
         model = new VisChain(LinAlg.translate(center), LinAlg.scale(max[0] - min[0], max[1] - min[1], max[2] - min[2]), 
                 new VzBox(new VzMesh.Style(color)));
         bbox[0] = min;
@@ -9,7 +9,7 @@ import java.util.Set;
 
 import abolt.bolt.Bolt;
 import abolt.classify.ClassifierManager;
-import abolt.classify.ColorFeatureExtractor;
+import abolt.classify.Features.FeatureCategory;
 import abolt.kinect.KUtils;
 import abolt.kinect.ObjectInfo;
 import abolt.kinect.Segment;
@@ -35,8 +35,8 @@ public class WorldObjectManager implements IObjectManager, LCMSubscriber {
     
     public WorldObjectManager(){
     	objects = new HashMap<Integer, WorldBoltObject>();
-    	segment = new Segment((int)(KUtils.viewRegion.width),
-                (int)(KUtils.viewRegion.height));
+    	segment = new Segment((int)(KUtils.viewRegion.x), (int)(KUtils.viewRegion.y),
+                (int)(KUtils.viewRegion.width), (int)(KUtils.viewRegion.height));
     	lcm.subscribe("KINECT_STATUS", this);
     }
     
@@ -75,10 +75,12 @@ public class WorldObjectManager implements IObjectManager, LCMSubscriber {
 	        }
 	        
 	        
+	        ArrayList<WorldBoltObject> updated = new ArrayList<WorldBoltObject>();
 	        for (ObjectInfo info : objectInfo.values()) {
-	        	ArrayList<Double> colorFeatures = ColorFeatureExtractor.getFeatures(info);
-	        	if(colorFeatures.get(0) < darkThreshold && colorFeatures.get(1) < darkThreshold &&
-	        			colorFeatures.get(2) < darkThreshold){
+	        	// Cached in info, so classification does not extract it again
+	        	double[] colorFeatures = info.getFeatureArray(FeatureCategory.COLOR);
+	        	if(colorFeatures[0] < darkThreshold && colorFeatures[1] < darkThreshold &&
+	        			colorFeatures[2] < darkThreshold){
 	        		continue;
 	        	}       	
 	        	
@@ -94,8 +96,9 @@ public class WorldObjectManager implements IObjectManager, LCMSubscriber {
 	                objects.put(id, bObject);
 	            }
 	            bObject.updateObject(info);
-	            Bolt.getClassifierManager().updateObject(bObject);
+	            updated.add(bObject);
 	        }
+	        Bolt.getClassifierManager().updateObjects(updated);
 	
 	        for (Integer id : objsToRemove) {
 	            objects.remove(id);
@@ -41,9 +41,9 @@ public class SimBlock extends SimBoltObject implements SimGrabbable
         shapeStr = ins.readString();
         sizeStr = ins.readString();
         
-        features.put(FeatureCategory.COLOR, SimFeatures.getColorFeatures(colorStr));
-        features.put(FeatureCategory.SHAPE, SimFeatures.getShapeFeatures(shapeStr));
-        features.put(FeatureCategory.SIZE, SimFeatures.getSizeFeatures(sizeStr));
+        features.put(FeatureCategory.COLOR, SimFeatures.getColorFeatureArray(colorStr));
+        features.put(FeatureCategory.SHAPE, SimFeatures.getShapeFeatureArray(shapeStr));
+        features.put(FeatureCategory.SIZE, SimFeatures.getSizeFeatureArray(sizeStr));
         
         ClassifierManager cm = Bolt.getClassifierManager();
         for(FeatureCategory cat : FeatureCategory.values()){
@@ -48,7 +48,7 @@ public class SimLocation extends BoltObject implements SimSensable {
     }
     
 	@Override
-	public ArrayList<Double> getFeatures(FeatureCategory cat) {
+	public double[] getFeatureArray(FeatureCategory cat) {
 		return null;
 	}
 	
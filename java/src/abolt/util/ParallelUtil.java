@@ -0,0 +1,79 @@
+package abolt.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A process-wide pool of worker threads, one per core, for splitting
+ *  work across cores. It is shared by the offline tools (cross
+ *  validation, sweeps, data reduction) and by the running system:
+ *  KNN.classifyBatch splits large perception batches across it when
+ *  classify.parallel_batch is set (the default), and DataFileParser
+ *  parses every large data file loadData reads on it.
+ *
+ *  Sharing is safe because every task is a leaf: none of them submits
+ *  further tasks and waits on them, which is what could deadlock a fixed
+ *  pool, and the callers that wait (the perception thread, the
+ *  classifier update thread, main) are never pool threads. Tasks only
+ *  read the data they are given and write to their own results. An
+ *  offline job running in the same process only delays live batches,
+ *  since the pool runs tasks in the order they were submitted.
+ */
+public class ParallelUtil
+{
+    static ExecutorService pool = null;
+
+    static public int getNumThreads()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    static public synchronized ExecutorService getPool()
+    {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(getNumThreads(), new ThreadFactory() {
+                    int count = 0;
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "ParallelUtil-" + (count++));
+                        // Never keep the process alive for the pool
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return pool;
+    }
+
+    /** Run all of the tasks on the pool and wait for them to finish.
+     *  @return the results in the same order as the tasks
+     */
+    static public <T> ArrayList<T> invokeAll(List<Callable<T>> tasks)
+    {
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> f: getPool().invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+        return results;
+    }
+
+    /** Split the range [0, n) into at most getNumThreads() contiguous
+     *  chunks of at least minChunk elements.
+     *  @return the chunk boundaries, chunk i is [bounds[i], bounds[i+1])
+     */
+    static public int[] split(int n, int minChunk)
+    {
+        int chunks = Math.max(1, Math.min(getNumThreads(), n / Math.max(1, minChunk)));
+        int[] bounds = new int[chunks + 1];
+        for (int i = 0; i <= chunks; i++) {
+            bounds[i] = (int) ((long) n * i / chunks);
+        }
+        return bounds;
+    }
+}